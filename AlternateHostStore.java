@@ -0,0 +1,150 @@
+/**
+ * Candidate redirect hosts found on Censys, by the CN of the issuer
+ * they share. The full candidate list from each lookup is kept on disk
+ * for a fixed time, so later lookups for the same issuer, in this run
+ * or later ones, cost no API call. Candidates that cannot be connected
+ * to are skipped for the rest of the run and the next one is used
+ * instead, they stay on disk as the failure may well be passing.
+ */
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+public class AlternateHostStore {
+
+    private File file;
+    private AsyncLog log;
+    //How long a lookup result is kept for
+    private long ttlMs;
+    private Map<String, Entry> issuers;
+    private Gson gson = new Gson();
+
+    /**
+     * Loads the candidates stored in the given file, if it exists
+     */
+    public AlternateHostStore(String filename, long ttlMs, AsyncLog log) {
+        this.file = new File(filename);
+        this.log = log;
+        this.ttlMs = ttlMs;
+        this.issuers = new HashMap<String, Entry>();
+        if(!file.exists()) return;
+        try (Reader in = new FileReader(file)) {
+            Type type = new TypeToken<HashMap<String, Entry>>(){}.getType();
+            Map<String, Entry> stored = gson.fromJson(in, type);
+            if(stored != null) issuers.putAll(stored);
+        } catch (IOException | JsonParseException e) {
+            log.println(0, "WARNING: Could not read Censys cache " + filename + ": " + e.getMessage());
+        }
+        Iterator<Entry> it = issuers.values().iterator();
+        while(it.hasNext()) {
+            Entry entry = it.next();
+            if(entry.hosts == null || expired(entry)) it.remove();
+        }
+    }
+
+    /**
+     * @return true if an unexpired lookup result, possibly empty, is stored for the issuer
+     */
+    public synchronized boolean contains(String issuerCN) {
+        Entry entry = issuers.get(issuerCN);
+        if(entry != null && expired(entry)) {
+            issuers.remove(issuerCN);
+            return false;
+        }
+        return entry != null;
+    }
+
+    /**
+     * Stores the result of a Censys lookup, in random order, and writes the store to disk.
+     * Empty results are stored too, so issuers without candidates are not looked up again.
+     */
+    public synchronized void put(String issuerCN, List<String> hosts) {
+        Entry entry = new Entry();
+        entry.fetched = System.currentTimeMillis();
+        entry.hosts = new ArrayList<String>(hosts);
+        Collections.shuffle(entry.hosts);
+        issuers.put(issuerCN, entry);
+        save();
+    }
+
+    /**
+     * Picks candidates in turn, so domains sharing an issuer are spread over them
+     *
+     * @param issuerCN CN of the issuer the candidate must share
+     * @param urlRequested domain being redirected, candidates on the same domain are skipped
+     * @return a candidate host, or null if there are none
+     */
+    public synchronized String next(String issuerCN, String urlRequested) {
+        if(!contains(issuerCN)) return null;
+        Entry entry = issuers.get(issuerCN);
+        for(int i = 0; i < entry.hosts.size(); i++) {
+            String host = entry.hosts.get((entry.next + i) % entry.hosts.size());
+            if(!host.contains(urlRequested) && (entry.failed == null || !entry.failed.contains(host))) {
+                entry.next = (entry.next + i + 1) % entry.hosts.size();
+                return host;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Skips a candidate that could not be connected to for the rest of this run
+     */
+    public synchronized void reject(String issuerCN, String host) {
+        Entry entry = issuers.get(issuerCN);
+        if(entry == null) return;
+        if(entry.failed == null) entry.failed = new HashSet<String>();
+        entry.failed.add(host);
+    }
+
+    private boolean expired(Entry entry) {
+        return System.currentTimeMillis() - entry.fetched > ttlMs;
+    }
+
+    /**
+     * Writes the store to a temporary file and moves it over the old one
+     */
+    private void save() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer out = new FileWriter(tmp)) {
+            gson.toJson(issuers, out);
+        } catch (IOException e) {
+            log.println(0, "WARNING: Could not write Censys cache " + file + ": " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.println(0, "WARNING: Could not write Censys cache " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static class Entry {
+        //Time of the Censys lookup, in milliseconds since the epoch
+        long fetched;
+        List<String> hosts;
+        //Index of the candidate to hand out next, not persisted
+        transient int next;
+        //Candidates that failed to connect in this run, not persisted
+        transient Set<String> failed;
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Log shared by the DNS server and MITM. Callers put fixed-shape events
+ * into a lock-free ring buffer and return straight away, a single writer
+ * thread formats them and writes them to the console and the log file in
+ * batches. The file is flushed periodically so a crash loses at most the
+ * last fraction of a second.
+ *
+ * Events are dropped, and counted, rather than ever blocking a caller
+ * when the ring is full.
+ */
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class AsyncLog implements Runnable {
+
+    //Level for events that only go to the log file
+    public static final int FILE_ONLY = Integer.MAX_VALUE;
+    //Slots in the ring, a power of two
+    private static final int CAPACITY = 1 << 14;
+    private static final int MASK = CAPACITY - 1;
+    //Longest time written events sit in the file buffer
+    private static final long FLUSH_INTERVAL = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private final Event[] ring;
+    //Next slot to be claimed by a producer
+    private final AtomicLong head = new AtomicLong();
+    //Next slot to be read by the writer, only touched by the writer thread
+    private long tail = 0;
+    private final AtomicLong dropped = new AtomicLong();
+    private final int verbose;
+    private final Writer file;
+    private final Thread writer;
+    private volatile boolean waiting = false;
+    private volatile boolean closed = false;
+
+    /**
+     * @param filename file every event is appended to
+     * @param verbose events with a level above this are not printed to the console
+     */
+    public AsyncLog(String filename, int verbose) throws IOException {
+        this(new BufferedWriter(new FileWriter(filename, true)), verbose);
+    }
+
+    public AsyncLog(Writer file, int verbose) {
+        this.file = file;
+        this.verbose = verbose;
+        this.ring = new Event[CAPACITY];
+        for(int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Event();
+            ring[i].sequence = i;
+        }
+        this.writer = new Thread(this, "log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Logs a line, printed to the console if verbosity is at least level
+     */
+    public void println(int level, String text) {
+        publish(level, -1, text, true);
+    }
+
+    /**
+     * Logs part of a line, the rest follows in a later call
+     */
+    public void print(int level, String text) {
+        publish(level, -1, text, false);
+    }
+
+    /**
+     * Logs a numbered handshake line, formatted as "    count. text" by the writer
+     */
+    public void println(int level, int count, String text) {
+        publish(level, count, text, true);
+    }
+
+    public void print(int level, int count, String text) {
+        publish(level, count, text, false);
+    }
+
+    /**
+     * @return the exception's stack trace, for logging it as a line
+     */
+    public static String stackTrace(Throwable e) {
+        StringWriter trace = new StringWriter();
+        e.printStackTrace(new PrintWriter(trace));
+        return trace.toString().trim();
+    }
+
+    /**
+     * @return number of events dropped because the ring was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void publish(int level, int count, String text, boolean newline) {
+        if(closed) return;
+        Event event;
+        long pos = head.get();
+        while(true) {
+            event = ring[(int) (pos & MASK)];
+            long diff = event.sequence - pos;
+            if(diff == 0) {
+                if(head.compareAndSet(pos, pos + 1)) break;
+                pos = head.get();
+            } else if(diff < 0) {
+                //Writer has not freed this slot yet, the ring is full
+                dropped.incrementAndGet();
+                return;
+            } else {
+                pos = head.get();
+            }
+        }
+        event.level = level;
+        event.count = count;
+        event.text = text;
+        event.newline = newline;
+        //Publishing the sequence hands the slot to the writer
+        event.sequence = pos + 1;
+        if(waiting) LockSupport.unpark(writer);
+    }
+
+    public void run() {
+        StringBuilder console = new StringBuilder();
+        StringBuilder line = new StringBuilder();
+        long lastFlush = System.nanoTime();
+        boolean unflushed = false;
+        while(true) {
+            boolean stopping = closed;
+            int written = 0;
+            Event event;
+            while((event = ring[(int) (tail & MASK)]).sequence == tail + 1) {
+                line.setLength(0);
+                if(event.count >= 0) line.append("    ").append(event.count).append(". ");
+                line.append(event.text);
+                if(event.newline) line.append(System.lineSeparator());
+                if(event.level <= verbose) console.append(line);
+                try {
+                    file.append(line);
+                } catch (IOException e) {
+                    //Keep going, the console still gets the event
+                }
+                event.text = null;
+                //Free the slot for the producer one lap ahead
+                event.sequence = tail + CAPACITY;
+                tail++;
+                written++;
+            }
+            if(console.length() > 0) {
+                System.out.print(console);
+                console.setLength(0);
+            }
+            if(written > 0) unflushed = true;
+            if(unflushed && (written == 0 || System.nanoTime() - lastFlush >= FLUSH_INTERVAL)) {
+                try {
+                    file.flush();
+                } catch (IOException e) {
+                }
+                lastFlush = System.nanoTime();
+                unflushed = false;
+            }
+            if(stopping) break;
+            if(written == 0) {
+                waiting = true;
+                //Recheck after announcing we are waiting, a producer may have just published
+                if(ring[(int) (tail & MASK)].sequence != tail + 1 && !closed) LockSupport.parkNanos(this, FLUSH_INTERVAL);
+                waiting = false;
+            }
+        }
+    }
+
+    /**
+     * Writes out every event logged so far and closes the log file
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if(dropped.get() > 0) file.append(dropped.get() + " log events dropped").append(System.lineSeparator());
+            file.close();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    private static class Event {
+        volatile long sequence;
+        int level;
+        //Handshake message number, or -1 for a plain line
+        int count;
+        String text;
+        boolean newline;
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Certificate chains fetched from each host, kept on disk so that later
+ * runs do not have to fetch them again. A chain is kept until its leaf
+ * certificate expires. New chains are only held in memory until the
+ * next call to save, so storing one never waits on the disk.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+public class CertCache {
+
+    private File file;
+    private AsyncLog log;
+    private Map<String, Entry> chains;
+    //Chains stored since the last save
+    private volatile boolean dirty = false;
+    private Gson gson = new Gson();
+
+    /**
+     * Loads the chains stored in the given file, if it exists
+     */
+    public CertCache(String filename, AsyncLog log) {
+        this.file = new File(filename);
+        this.log = log;
+        this.chains = new ConcurrentHashMap<String, Entry>();
+        if(!file.exists()) return;
+        try (Reader in = new FileReader(file)) {
+            Type type = new TypeToken<HashMap<String, Entry>>(){}.getType();
+            Map<String, Entry> stored = gson.fromJson(in, type);
+            if(stored != null) chains.putAll(stored);
+        } catch (IOException | JsonParseException e) {
+            log.println(0, "WARNING: Could not read certificate cache " + filename + ": " + e.getMessage());
+        }
+        long now = System.currentTimeMillis();
+        Iterator<Entry> it = chains.values().iterator();
+        while(it.hasNext()) {
+            if(it.next().notAfter <= now) it.remove();
+        }
+    }
+
+    /**
+     * @return the chain stored for the host, or null if there is none or its leaf has expired
+     */
+    public Cert[] get(String host) {
+        Entry entry = chains.get(host);
+        if(entry == null) return null;
+        if(entry.notAfter <= System.currentTimeMillis()) {
+            chains.remove(host);
+            return null;
+        }
+        Cert[] certs = new Cert[entry.ders.length];
+        for(int i = 0; i < certs.length; i++) {
+            certs[i] = new Cert(Base64.getDecoder().decode(entry.ders[i]), entry.cns[i]);
+        }
+        return certs;
+    }
+
+    /**
+     * Stores the chain for the host, until its leaf certificate expires
+     */
+    public void put(String host, Cert[] certs) {
+        if(certs == null || certs.length == 0 || certs[0] == null) return;
+        Entry entry = new Entry();
+        try {
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            X509Certificate leaf = (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(certs[0].getDer()));
+            entry.notAfter = leaf.getNotAfter().getTime();
+        } catch (Exception e) {
+            return;
+        }
+        entry.ders = new String[certs.length];
+        entry.cns = new String[certs.length];
+        for(int i = 0; i < certs.length; i++) {
+            if(certs[i] == null) return;
+            entry.ders[i] = Base64.getEncoder().encodeToString(certs[i].getDer());
+            entry.cns[i] = certs[i].getCN();
+        }
+        chains.put(host, entry);
+        dirty = true;
+    }
+
+    /**
+     * Writes the cache to a temporary file and moves it over the old one, if
+     * chains were stored since the last save, so a crash part way through
+     * never leaves a truncated cache
+     */
+    public synchronized void save() {
+        if(!dirty) return;
+        //Cleared before the copy, so a chain stored meanwhile is caught by the next save
+        dirty = false;
+        Map<String, Entry> snapshot = new HashMap<String, Entry>(chains);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer out = new FileWriter(tmp)) {
+            gson.toJson(snapshot, out);
+        } catch (IOException e) {
+            log.println(0, "WARNING: Could not write certificate cache " + file + ": " + e.getMessage());
+            dirty = true;
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.println(0, "WARNING: Could not write certificate cache " + file + ": " + e.getMessage());
+            dirty = true;
+        }
+    }
+
+    private static class Entry {
+        //Expiry of the leaf certificate, in milliseconds since the epoch
+        long notAfter;
+        //Base64 DER encoding and CN of each certificate, leaf first
+        String[] ders;
+        String[] cns;
+    }
+}
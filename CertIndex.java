@@ -0,0 +1,80 @@
+/**
+ * SHA-256 fingerprints of the certificate chains served by the requested
+ * domains, so a certificate proxied from a redirect host is hashed once
+ * and checked against every level of the real chain with a single lookup.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class CertIndex {
+
+    public static final int NO_MATCH = -1;
+
+    //Written by the DNS thread and read by the event loop
+    private final Map<String, Chain> chains = new ConcurrentHashMap<String, Chain>();
+
+    /**
+     * Indexes the chain served by a domain, leaf first
+     */
+    public void put(String domain, Cert[] certs) {
+        if(certs == null || certs.length == 0) return;
+        Chain chain = new Chain();
+        chain.length = certs.length;
+        for(int level = 0; level < certs.length; level++) {
+            if(certs[level] == null) continue;
+            chain.levels.putIfAbsent(Utils.getSha256(certs[level].getDer()), level);
+        }
+        Cert top = certs[certs.length - 1];
+        chain.endsWithRoot = certs.length > 1 && top != null && selfSigned(top.getDer());
+        chains.put(domain, chain);
+    }
+
+    public boolean contains(String domain) {
+        return domain != null && chains.containsKey(domain);
+    }
+
+    /**
+     * @param fingerprint SHA-256 of a certificate, as from Utils.getSha256
+     * @return the level of the domain's chain the certificate is at, 0 for the leaf, or NO_MATCH
+     */
+    public int level(String domain, String fingerprint) {
+        Chain chain = domain != null ? chains.get(domain) : null;
+        if(chain == null) return NO_MATCH;
+        Integer level = chain.levels.get(fingerprint);
+        return level != null ? level : NO_MATCH;
+    }
+
+    /**
+     * @return leaf, intermediate or root
+     */
+    public String levelName(String domain, int level) {
+        if(level == 0) return "leaf";
+        Chain chain = chains.get(domain);
+        if(chain != null && chain.endsWithRoot && level == chain.length - 1) return "root";
+        return "intermediate";
+    }
+
+    private static boolean selfSigned(byte[] der) {
+        try {
+            X509Certificate cert = (X509Certificate) CertificateFactory.getInstance("X.509")
+                    .generateCertificate(new ByteArrayInputStream(der));
+            return cert.getSubjectX500Principal().equals(cert.getIssuerX500Principal());
+        } catch (CertificateException e) {
+            return false;
+        }
+    }
+
+    private static class Chain {
+        //Level of each certificate by fingerprint
+        final Map<String, Integer> levels = new HashMap<String, Integer>();
+        int length;
+        //True if the domain sent its root as well, servers usually leave it out
+        boolean endsWithRoot;
+    }
+}
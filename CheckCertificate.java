@@ -17,8 +17,8 @@ import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Random;
 
 import javax.naming.ldap.LdapName;
 import javax.naming.ldap.Rdn;
@@ -28,7 +28,7 @@ import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
-import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
@@ -38,7 +38,6 @@ import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 
 import com.google.gson.JsonArray;
@@ -47,7 +46,12 @@ import com.google.gson.JsonParser;
 
 public class CheckCertificate {
 	static int portNo = 443;
+	static String censysURL = "https://www.censys.io/api/v1/search/certificates";
 	static boolean verbose = false;
+	//Most pages of Censys results fetched per lookup, each page costs one API query
+	static int censysPages = 5;
+	//Where lookup failures are logged, if set
+	static AsyncLog log;
 
 	/**
 	 * Gets the certificates used by the server and prints Issuer details to
@@ -59,35 +63,17 @@ public class CheckCertificate {
 	 */
 	public static Cert[] getCertificates(String host) {
 
-		try {
-			TrustManager[] trustAllCerts = new TrustManager[] { new X509TrustManager() {
-				public java.security.cert.X509Certificate[] getAcceptedIssuers() {
-					return null;
-				}
-
-				public void checkClientTrusted(X509Certificate[] certs, String authType) {
-				}
-
-				public void checkServerTrusted(X509Certificate[] certs, String authType) {
-				}
-			} };
-
-			// Install the all-trusting trust manager
-			SSLContext sc = SSLContext.getInstance("TLSv1.2");
-			sc.init(null, trustAllCerts, new java.security.SecureRandom());
-
-			// Open TLS connection with host
-			SSLSocket socket = (SSLSocket) sc.getSocketFactory().createSocket();
+		long started = System.nanoTime();
+		// Open TLS connection with host, using the shared all-trusting context
+		try (SSLSocket socket = (SSLSocket) LookupClient.probeContext().getSocketFactory().createSocket()) {
 			socket.connect(new InetSocketAddress(host, portNo), 10000);
 			// Start TLS handshake
 			socket.startHandshake();
 			// Get session certificates
-			javax.security.cert.X509Certificate[] certs = socket.getSession().getPeerCertificateChain();
-			// Print number of certificates provided by host
-			StringBuilder result = new StringBuilder();
+			Certificate[] certs = socket.getSession().getPeerCertificates();
 			Cert[] cs = new Cert[certs.length];
 			for (int i = 0; i < certs.length; i++) {
-				String dn = certs[i].getSubjectDN().getName();
+				String dn = ((X509Certificate) certs[i]).getSubjectX500Principal().getName();
 				LdapName ln = new LdapName(dn);
 				for (Rdn rdn : ln.getRdns()) {
 					if (rdn.getType().equalsIgnoreCase("CN")) {
@@ -98,39 +84,63 @@ public class CheckCertificate {
 			}
 			return cs;
 		} catch (Exception e) {
-			System.out.println("Get certificate failed for host: " + host);
+			logFailure("Get certificate failed for host " + host, e);
+			Metrics.CERT_FETCH_ERRORS.inc();
 			return null;
+		} finally {
+			Metrics.CERT_FETCH_SECONDS.observeSince(started);
 		}
 	}
 
 	/**
-	 * @param host
-	 *            hostname to check certificate
-	 * @param mapFile
-	 *            the file path of a HashMap<String, ArrayList<String>> file.
-	 * @return a random host that use the same TLS certificate as the given host
+	 * @param certCN
+	 *            CN of the issuer certificate to search for
+	 * @param ID
+	 *            Censys API ID
+	 * @param secret
+	 *            Censys API secret
+	 * @return every unexpired, non-wildcard host Censys knows of that uses a
+	 *         certificate from the given issuer, or null if the lookup failed
 	 */
-	@SuppressWarnings("unchecked")
-	public static String censysLookup(String urlRequested, String certCN, String ID, String secret) {
+	public static List<String> censysLookup(String certCN, String ID, String secret) {
 
 		ArrayList<String> alternateHosts = new ArrayList<>();
 		SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
+		long started = System.nanoTime();
+		// Pages read so far, a later page failing keeps the hosts from these
+		int fetched = 0;
 		try {
-			CloseableHttpClient httpclient = HttpClients.createDefault();
-			HttpPost post = new HttpPost("https://www.censys.io/api/v1/search/certificates");
-			post.setHeader("User-Agent", "python-requests/2.13.0");
+			CloseableHttpClient httpclient = LookupClient.httpClient();
 			String base64 = Base64.getEncoder().encodeToString((ID + ":" + secret).getBytes("utf-8"));
-			post.setHeader("Authorization", "Basic " + base64);
-			String jsonQuery = "{" + "  \"query\":\"443.https.tls.certificate.parsed.issuer.common_name: " + certCN
-					+ "\"," + "  \"page\":1,"
-					+ "  \"fields\":[\"parsed.subject.common_name\", \"parsed.validity.end\"]," + "  \"flatten\":false"
-					+ "}";
-			StringEntity requestEntity = new StringEntity(jsonQuery, ContentType.APPLICATION_JSON);
-			post.setEntity(requestEntity);
-			HttpResponse response = httpclient.execute(post);
-			JsonObject json = new JsonParser().parse(EntityUtils.toString(response.getEntity())).getAsJsonObject();
-			if (json.get("status").getAsString().equals("ok")) {
+			int pages = 1;
+			for (int page = 1; page <= pages && page <= censysPages; page++) {
+				HttpPost post = new HttpPost(censysURL);
+				post.setHeader("User-Agent", "python-requests/2.13.0");
+				post.setHeader("Authorization", "Basic " + base64);
+				String jsonQuery = "{" + "  \"query\":\"443.https.tls.certificate.parsed.issuer.common_name: " + certCN
+						+ "\"," + "  \"page\":" + page + ","
+						+ "  \"fields\":[\"parsed.subject.common_name\", \"parsed.validity.end\"]," + "  \"flatten\":false"
+						+ "}";
+				StringEntity requestEntity = new StringEntity(jsonQuery, ContentType.APPLICATION_JSON);
+				post.setEntity(requestEntity);
+				JsonObject json;
+				// Read the whole body so the connection goes back to the pool
+				try (CloseableHttpResponse response = httpclient.execute(post)) {
+					json = new JsonParser().parse(EntityUtils.toString(response.getEntity())).getAsJsonObject();
+				}
+				if (!json.has("status") || !json.get("status").getAsString().equals("ok")) {
+					if (page == 1) {
+						Metrics.CENSYS_LOOKUP_ERRORS.inc();
+						return null;
+					}
+					break;
+				}
+				try {
+					pages = json.getAsJsonObject("metadata").get("pages").getAsInt();
+				} catch (Exception e) {
+					pages = page;
+				}
 				JsonArray results = json.getAsJsonArray("results");
 				for (int i = 0; i < results.size(); i++) {
 					try {
@@ -141,20 +151,37 @@ public class CheckCertificate {
 							continue;
 						String cn = results.get(i).getAsJsonObject().get("parsed").getAsJsonObject().get("subject")
 								.getAsJsonObject().get("common_name").getAsJsonArray().get(0).getAsString();
-						if (cn != null && !cn.contains(urlRequested) && !cn.contains("*."))
+						if (cn != null && !cn.contains("*.") && !alternateHosts.contains(cn))
 							alternateHosts.add(cn);
 					} catch (Exception e) {
 						continue;
 					}
 				}
+				fetched++;
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
+		} catch (IOException | RuntimeException e) {
+			if (fetched > 0) {
+				logFailure("Censys lookup for " + certCN + " stopped after page " + fetched, e);
+				return alternateHosts;
+			}
+			logFailure("Censys lookup failed for " + certCN, e);
+			Metrics.CENSYS_LOOKUP_ERRORS.inc();
+			return null;
+		} finally {
+			Metrics.CENSYS_LOOKUP_SECONDS.observeSince(started);
 		}
-		if (alternateHosts.size() > 1) {
-			return alternateHosts.get(new Random().nextInt(alternateHosts.size()));
+		return alternateHosts;
+	}
+
+	/**
+	 * Logs the failure with its stack trace in the log file, or prints it if there is no log
+	 */
+	private static void logFailure(String message, Throwable e) {
+		if (log != null) {
+			log.println(0, message + ": " + e);
+			log.println(AsyncLog.FILE_ONLY, AsyncLog.stackTrace(e));
 		} else {
-			return null;
+			System.out.println(message + ": " + e);
 		}
 	}
 }
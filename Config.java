@@ -1,11 +1,9 @@
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
 import java.io.InputStream;
 import java.util.Properties;
 import java.util.ArrayList;
-import java.util.List;
 
 /**
  * Configuration class 
@@ -13,9 +11,25 @@ import java.util.List;
  */
 public class Config {
     String dnsIP;
+    int dnsPort;
+    //Port TLS is served on by requested domains and redirect hosts
+    int upstreamPort;
+    String censysURL;
     String censysID;
     String censysSecret;
-    String[] allowList;
+    //Domains to spoof, replaced when the file changes
+    volatile DomainList allowList;
+    String allowListFile;
+    private long allowListModified;
+    //File certificate chains are cached in between runs
+    String certCacheFile;
+    //File Censys lookup results are cached in between runs, and for how long
+    String censysCacheFile;
+    long censysCacheTTL;
+    //Most pages of results fetched per Censys lookup, each page costs one API query
+    int censysPages;
+    //File the timings of past sessions are kept in between runs
+    String timingHistoryFile;
 	
 	public Config(String configFilename, String whitelistFilename) throws Exception {
 		Properties properties = new Properties();
@@ -26,18 +40,35 @@ public class Config {
 
 	public void loadProperties(Properties properties, String whitelistFilename) throws Exception {
 		dnsIP = properties.getProperty("dns");
+		dnsPort = Integer.parseInt(properties.getProperty("dnsPort", "53"));
+		upstreamPort = Integer.parseInt(properties.getProperty("upstreamPort", "443"));
+		censysURL = properties.getProperty("censysURL", "https://www.censys.io/api/v1/search/certificates");
 		censysID = properties.getProperty("censysID");
 		censysSecret = properties.getProperty("censysSecret");
+		certCacheFile = properties.getProperty("certCache", "cert_cache.json");
+		censysCacheFile = properties.getProperty("censysCache", "censys_cache.json");
+		censysCacheTTL = Long.parseLong(properties.getProperty("censysCacheDays", "7")) * 24 * 60 * 60 * 1000;
+		censysPages = Integer.parseInt(properties.getProperty("censysPages", "5"));
+		timingHistoryFile = properties.getProperty("timingHistory", "timing_history.json");
+        allowListFile = whitelistFilename;
         if(whitelistFilename != null) {
-            BufferedReader in = new BufferedReader(new FileReader(whitelistFilename));
-            String str;
-            List<String> list = new ArrayList<String>();
-            while((str = in.readLine()) != null){
-                list.add(str);
-            }
-            allowList = list.toArray(new String[0]);
+            allowListModified = new File(whitelistFilename).lastModified();
+            allowList = DomainList.load(whitelistFilename);
         } else {
-            allowList = new String[]{};
+            allowList = new DomainList(new ArrayList<String>());
         }
 	}
+
+    /**
+     * Reads the allow list file again if it has changed since it was last read
+     * @return true if the list was replaced
+     */
+    public boolean reloadAllowList() throws IOException {
+        if(allowListFile == null) return false;
+        long modified = new File(allowListFile).lastModified();
+        if(modified == 0 || modified == allowListModified) return false;
+        allowListModified = modified;
+        allowList = DomainList.load(allowListFile);
+        return true;
+    }
 }
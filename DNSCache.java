@@ -0,0 +1,258 @@
+/**
+ * Cache of DNS responses keyed by the question they answer (name, type
+ * and class) and by what the client said of EDNS: whether it sent an OPT
+ * record, the UDP size it advertised, rounded down to a few sizes, and
+ * its DO bit. A plain client is never sent an answer with an OPT record
+ * or larger than 512 bytes that was fetched for an EDNS one, nor the
+ * other way round. Entries live for the smallest TTL among their records and
+ * the least recently used entry is evicted once the cache is full.
+ * Responses served from the cache carry the transaction ID and question
+ * of the new query, and TTLs counted down by the time spent in the cache.
+ */
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DNSCache {
+
+    private static final int TYPE_OPT = 41;
+    //Largest UDP response a client without EDNS accepts
+    private static final int PLAIN_UDP_SIZE = 512;
+    //Advertised UDP sizes are rounded down to one of these
+    private static final int[] UDP_SIZE_BUCKETS = {4096, 1232, PLAIN_UDP_SIZE};
+
+    private Map<String, Entry> entries;
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+
+    public DNSCache(final int maxEntries) {
+        //Access ordered, so the eldest entry is the least recently used
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param query a DNS query
+     * @return a response to the query, or null if none is cached
+     */
+    public byte[] get(byte[] query) {
+        String key = keyOf(query);
+        Entry entry = null;
+        if(key != null) {
+            synchronized(this) {
+                entry = entries.get(key);
+                if(entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+                    entries.remove(key);
+                    entry = null;
+                }
+            }
+        }
+        if(entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+
+        byte[] response = entry.response.clone();
+        //Transaction ID and question, including its case, come from the new query
+        System.arraycopy(query, 0, response, 0, 2);
+        System.arraycopy(query, 12, response, 12, entry.questionLength);
+        int elapsed = (int) ((System.currentTimeMillis() - entry.storedAt) / 1000);
+        for(int i = 0; i < entry.ttlOffsets.length; i++) {
+            writeInt(response, entry.ttlOffsets[i], Math.max(0, entry.ttls[i] - elapsed));
+        }
+        return response;
+    }
+
+    /**
+     * Caches a response for as long as its shortest lived record.
+     * Truncated, failed and record-less responses are not cached, nor are
+     * responses too large for every client sharing the query's key.
+     *
+     * @param query the query the response answers
+     * @param response a DNS response
+     */
+    public void put(byte[] query, byte[] response) {
+        String key = keyOf(query);
+        if(key == null || response.length < 12 || response.length > udpSize(query)) return;
+        //TC set, or RCODE other than NOERROR and NXDOMAIN
+        if((response[2] & 0x02) != 0) return;
+        int rcode = response[3] & 0x0f;
+        if(rcode != 0 && rcode != 3) return;
+
+        Entry entry;
+        try {
+            entry = parse(response);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return;
+        }
+        if(entry == null || entry.questionLength != questionLength(query)) return;
+        synchronized(this) {
+            entries.put(key, entry);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the cache key for the first question and the EDNS options of a DNS query, or null if it cannot be read
+     */
+    static String keyOf(byte[] message) {
+        try {
+            StringBuilder key = new StringBuilder();
+            int pos = 12;
+            int length = message[pos] & 0xff;
+            while(length != 0) {
+                if((length & 0xc0) != 0) return null;
+                for(int i = 1; i <= length; i++) key.append((char) (message[pos + i] & 0xff));
+                key.append('.');
+                pos += length + 1;
+                length = message[pos] & 0xff;
+            }
+            pos++;
+            key.append('/').append(readShort(message, pos)).append('/').append(readShort(message, pos + 2));
+            int opt = findOpt(message);
+            if(opt >= 0) {
+                key.append("/edns").append(bucket(readShort(message, opt + 2)));
+                //DO bit, the client wants DNSSEC records
+                if((message[opt + 6] & 0x80) != 0) key.append("/do");
+            }
+            return key.toString().toLowerCase(Locale.ROOT);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the largest UDP response every client sharing the query's key accepts
+     */
+    private static int udpSize(byte[] query) {
+        int opt = findOpt(query);
+        return opt >= 0 ? bucket(readShort(query, opt + 2)) : PLAIN_UDP_SIZE;
+    }
+
+    private static int bucket(int advertised) {
+        for(int size : UDP_SIZE_BUCKETS) {
+            if(advertised >= size) return size;
+        }
+        return PLAIN_UDP_SIZE;
+    }
+
+    /**
+     * @return position of the type field of the OPT record in a DNS message, or -1 if it has none
+     */
+    private static int findOpt(byte[] message) {
+        int questions = readShort(message, 4);
+        int records = readShort(message, 6) + readShort(message, 8) + readShort(message, 10);
+        int pos = 12;
+        for(int i = 0; i < questions; i++) pos = skipName(message, pos) + 4;
+        for(int i = 0; i < records; i++) {
+            pos = skipName(message, pos);
+            if(readShort(message, pos) == TYPE_OPT) return pos;
+            pos += 10 + readShort(message, pos + 8);
+        }
+        return -1;
+    }
+
+    /**
+     * @return length of the first question of a DNS message, starting at offset 12
+     */
+    private static int questionLength(byte[] message) {
+        return skipName(message, 12) + 4 - 12;
+    }
+
+    /**
+     * Finds the TTL of every record in a response
+     * @return the entry to cache, or null if the response has no records
+     */
+    private static Entry parse(byte[] response) {
+        int questions = readShort(response, 4);
+        int records = readShort(response, 6) + readShort(response, 8) + readShort(response, 10);
+        int pos = 12;
+        for(int i = 0; i < questions; i++) pos = skipName(response, pos) + 4;
+        int questionLength = questions > 0 ? skipName(response, 12) + 4 - 12 : 0;
+
+        List<Integer> offsets = new ArrayList<Integer>();
+        long minTtl = Long.MAX_VALUE;
+        for(int i = 0; i < records; i++) {
+            pos = skipName(response, pos);
+            int type = readShort(response, pos);
+            //The TTL field of an EDNS OPT record holds flags, not a TTL
+            if(type != TYPE_OPT) {
+                offsets.add(pos + 4);
+                minTtl = Math.min(minTtl, readInt(response, pos + 4) & 0xffffffffL);
+            }
+            pos += 10 + readShort(response, pos + 8);
+        }
+        if(offsets.isEmpty() || minTtl == 0 || pos > response.length) return null;
+
+        Entry entry = new Entry();
+        entry.response = response.clone();
+        entry.questionLength = questionLength;
+        entry.storedAt = System.currentTimeMillis();
+        entry.expiresAt = entry.storedAt + Math.min(minTtl, Integer.MAX_VALUE) * 1000;
+        entry.ttlOffsets = new int[offsets.size()];
+        entry.ttls = new int[offsets.size()];
+        for(int i = 0; i < entry.ttlOffsets.length; i++) {
+            entry.ttlOffsets[i] = offsets.get(i);
+            entry.ttls[i] = (int) Math.min(readInt(response, offsets.get(i)) & 0xffffffffL, Integer.MAX_VALUE);
+        }
+        return entry;
+    }
+
+    /**
+     * @return the position just past a possibly compressed name
+     */
+    private static int skipName(byte[] message, int pos) {
+        while(true) {
+            int length = message[pos] & 0xff;
+            if(length == 0) return pos + 1;
+            //A compression pointer always ends the name
+            if((length & 0xc0) == 0xc0) return pos + 2;
+            pos += length + 1;
+        }
+    }
+
+    private static int readShort(byte[] data, int pos) {
+        return ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+    }
+
+    private static int readInt(byte[] data, int pos) {
+        return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16) | ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+    }
+
+    private static void writeInt(byte[] data, int pos, int value) {
+        data[pos] = (byte) (value >> 24);
+        data[pos + 1] = (byte) (value >> 16);
+        data[pos + 2] = (byte) (value >> 8);
+        data[pos + 3] = (byte) value;
+    }
+
+    private static class Entry {
+        byte[] response;
+        int questionLength;
+        long storedAt;
+        long expiresAt;
+        //Position and original value of every TTL field in the response
+        int[] ttlOffsets;
+        int[] ttls;
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Reads DNS queries and writes spoofed answers to them in place. A codec
+ * is reused for every query handled by a thread: parsing only records
+ * offsets into the query, and answers are written into the codec's own
+ * buffer, so the only object created per query is the name requested.
+ *
+ * Handles compressed names, several questions per query and EDNS. Only
+ * A (and ANY) questions get an address, anything else, e.g. AAAA, HTTPS
+ * or SVCB, gets an empty answer so clients fall back to the spoofed IPv4
+ * address straight away instead of waiting on a timeout.
+ */
+
+import java.nio.ByteBuffer;
+
+public class DNSCodec {
+
+    //Largest query read, leaves room for EDNS padding
+    public static final int MAX_MESSAGE = 4096;
+    public static final int TYPE_A = 1;
+    public static final int TYPE_AAAA = 28;
+    public static final int TYPE_OPT = 41;
+    public static final int TYPE_SVCB = 64;
+    public static final int TYPE_HTTPS = 65;
+    public static final int TYPE_ANY = 255;
+    public static final int CLASS_IN = 1;
+    //UDP payload size advertised in answers to EDNS queries, avoids fragmentation
+    private static final int EDNS_PAYLOAD = 1232;
+    private static final int MAX_QUESTIONS = 16;
+    private static final int MAX_NAME = 255;
+    //Compression pointers followed per name before giving up on a loop
+    private static final int MAX_POINTERS = 16;
+
+    private ByteBuffer query;
+    private int questions;
+    private final int[] nameOffsets = new int[MAX_QUESTIONS];
+    private final int[] types = new int[MAX_QUESTIONS];
+    private final int[] classes = new int[MAX_QUESTIONS];
+    //End of the question section
+    private int questionEnd;
+    private boolean edns;
+    //First question's name, lower case and without the trailing dot
+    private final char[] name = new char[MAX_NAME];
+    private int nameLength;
+    private final ByteBuffer response = ByteBuffer.allocate(MAX_MESSAGE);
+
+    /**
+     * Reads a query between position 0 and the limit of the buffer. The
+     * buffer is read, never modified, and must not change until the query
+     * has been answered.
+     *
+     * @return false if it is not a well formed standard query
+     */
+    public boolean parse(ByteBuffer query) {
+        this.query = query;
+        this.questions = 0;
+        this.edns = false;
+        this.nameLength = 0;
+        try {
+            if(query.limit() < 12) return false;
+            int flags = query.getShort(2) & 0xffff;
+            //Must be a query (QR clear) with opcode QUERY
+            if((flags & 0xf800) != 0) return false;
+            int qdCount = query.getShort(4) & 0xffff;
+            int records = (query.getShort(6) & 0xffff) + (query.getShort(8) & 0xffff);
+            int additional = query.getShort(10) & 0xffff;
+            if(qdCount == 0 || qdCount > MAX_QUESTIONS) return false;
+
+            int pos = 12;
+            for(int i = 0; i < qdCount; i++) {
+                nameOffsets[i] = pos;
+                pos = readName(pos, i == 0);
+                if(pos < 0 || pos + 4 > query.limit()) return false;
+                types[i] = query.getShort(pos) & 0xffff;
+                classes[i] = query.getShort(pos + 2) & 0xffff;
+                pos += 4;
+            }
+            questions = qdCount;
+            questionEnd = pos;
+
+            //Answer and authority records are not expected in a query, but are skipped over if present
+            for(int i = 0; i < records + additional; i++) {
+                pos = readName(pos, false);
+                if(pos < 0 || pos + 10 > query.limit()) return false;
+                int type = query.getShort(pos) & 0xffff;
+                if(type == TYPE_OPT && i >= records) edns = true;
+                pos += 10 + (query.getShort(pos + 8) & 0xffff);
+            }
+            return pos <= query.limit();
+        } catch (IndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Skips over a possibly compressed name, optionally recording it as the first question's name
+     * @return the position just past the name, or -1 if it is malformed
+     */
+    private int readName(int pos, boolean record) {
+        int end = -1;
+        int pointers = 0;
+        int length = 0;
+        while(true) {
+            int label = query.get(pos) & 0xff;
+            if(label == 0) return end < 0 ? pos + 1 : end;
+            if((label & 0xc0) == 0xc0) {
+                if(++pointers > MAX_POINTERS) return -1;
+                if(end < 0) end = pos + 2;
+                pos = ((label & 0x3f) << 8) | (query.get(pos + 1) & 0xff);
+                continue;
+            }
+            if((label & 0xc0) != 0) return -1;
+            length += label + 1;
+            if(length > MAX_NAME) return -1;
+            if(record) {
+                if(nameLength > 0) name[nameLength++] = '.';
+                for(int i = 1; i <= label; i++) {
+                    char c = (char) (query.get(pos + i) & 0xff);
+                    name[nameLength++] = c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+                }
+            }
+            pos += label + 1;
+        }
+    }
+
+    /**
+     * @return the name asked for by the first question, in lower case
+     */
+    public String name() {
+        return new String(name, 0, nameLength);
+    }
+
+    /**
+     * @return type of the first question
+     */
+    public int type() {
+        return types[0];
+    }
+
+    /**
+     * @return true if any question asks for an IPv4 address
+     */
+    public boolean wantsAddress() {
+        for(int i = 0; i < questions; i++) {
+            if(classes[i] == CLASS_IN && (types[i] == TYPE_A || types[i] == TYPE_ANY)) return true;
+        }
+        return false;
+    }
+
+    public boolean hasEdns() {
+        return edns;
+    }
+
+    /**
+     * Answers every A and ANY question of the parsed query with the given
+     * address, and every other question with no records.
+     *
+     * @param address IPv4 address to answer with
+     * @param ttl time to live of the answers in seconds
+     * @return the response, between position 0 and its limit, valid until the next call
+     */
+    public ByteBuffer spoof(byte[] address, int ttl) {
+        response.clear();
+        response.putShort(query.getShort(0));
+        //QR and RA set, opcode and RD copied from the query, NOERROR
+        response.putShort((short) (0x8080 | (query.getShort(2) & 0x7900)));
+        response.putShort((short) questions);
+        response.putShort((short) 0);
+        response.putShort((short) 0);
+        response.putShort((short) (edns ? 1 : 0));
+        //Questions are copied as they are, so any pointers in them still hold
+        if(query.hasArray()) {
+            response.put(query.array(), query.arrayOffset() + 12, questionEnd - 12);
+        } else {
+            for(int i = 12; i < questionEnd; i++) response.put(query.get(i));
+        }
+        int answers = 0;
+        for(int i = 0; i < questions; i++) {
+            if(classes[i] != CLASS_IN || (types[i] != TYPE_A && types[i] != TYPE_ANY)) continue;
+            response.putShort((short) (0xc000 | nameOffsets[i]));
+            response.putShort((short) TYPE_A);
+            response.putShort((short) CLASS_IN);
+            response.putInt(ttl);
+            response.putShort((short) address.length);
+            response.put(address);
+            answers++;
+        }
+        response.putShort(6, (short) answers);
+        if(edns) {
+            //OPT record: root name, payload size, no extended RCODE or flags, no options
+            response.put((byte) 0);
+            response.putShort((short) TYPE_OPT);
+            response.putShort((short) EDNS_PAYLOAD);
+            response.putInt(0);
+            response.putShort((short) 0);
+        }
+        response.flip();
+        return response;
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Forwards DNS queries to the real DNS server over a few long lived
+ * sockets. Each query is sent with a transaction ID of our own so that
+ * many can be in flight at once, and replies are matched back to their
+ * query by that ID. IDs are picked at random, so an off-path attacker
+ * cannot guess the next one and race the real server's reply. Queries
+ * that get no reply are retried and then given up on.
+ */
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.CompletableFuture;
+
+public class DNSForwarder {
+
+    //Largest UDP DNS reply we accept
+    private static final int MAX_REPLY_SIZE = 4096;
+
+    private InetSocketAddress server;
+    private DatagramSocket[] sockets;
+    //Time to wait for a reply before resending the query
+    private int timeoutMs;
+    //Times a query is resent before giving up
+    private int retries;
+    //Queries waiting for a reply, keyed by the transaction ID we sent them with
+    private ConcurrentHashMap<Integer, CompletableFuture<byte[]>> inFlight;
+    private SecureRandom random = new SecureRandom();
+    private volatile boolean closed = false;
+
+    public DNSForwarder(String serverIP, int port, int socketCount, int timeoutMs, int retries) throws IOException {
+        this.server = new InetSocketAddress(InetAddress.getByName(serverIP), port);
+        this.timeoutMs = timeoutMs;
+        this.retries = retries;
+        this.inFlight = new ConcurrentHashMap<Integer, CompletableFuture<byte[]>>();
+        this.sockets = new DatagramSocket[socketCount];
+        for(int i = 0; i < socketCount; i++) {
+            sockets[i] = new DatagramSocket();
+            //Only accept replies from the real DNS server
+            sockets[i].connect(server);
+            Thread receiver = new Thread(new Receiver(sockets[i]), "dns-forwarder-" + i);
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+    }
+
+    /**
+     * Sends a query to the real DNS server and waits for its reply,
+     * resending it if no reply arrives in time.
+     *
+     * @param query a DNS query, exactly as long as its content
+     * @return the reply, trimmed to its real length, with the query's transaction ID
+     */
+    public byte[] forward(byte[] query) throws IOException {
+        for(int attempt = 0; attempt <= retries; attempt++) {
+            int id = reserveID();
+            CompletableFuture<byte[]> reply = inFlight.get(id);
+            try {
+                byte[] request = Arrays.copyOf(query, query.length);
+                request[0] = (byte) (id >> 8);
+                request[1] = (byte) id;
+                DatagramSocket sock = sockets[id % sockets.length];
+                sock.send(new DatagramPacket(request, request.length));
+                byte[] response = reply.get(timeoutMs, TimeUnit.MILLISECONDS);
+                //Give the requester back its own transaction ID
+                response[0] = query[0];
+                response[1] = query[1];
+                return response;
+            } catch (TimeoutException e) {
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for DNS reply");
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            } finally {
+                inFlight.remove(id);
+            }
+        }
+        throw new SocketTimeoutException("No reply from DNS server " + server.getHostString() + " after " + (retries + 1) + " attempts");
+    }
+
+    /**
+     * @return a random transaction ID not used by any query in flight, registered as in flight
+     */
+    private int reserveID() throws IOException {
+        //Collisions are rare until most of the 65536 IDs are in flight
+        for(int i = 0; i < 1000; i++) {
+            int id = random.nextInt(0x10000);
+            if(inFlight.putIfAbsent(id, new CompletableFuture<byte[]>()) == null) return id;
+        }
+        throw new IOException("Too many DNS queries in flight");
+    }
+
+    public void close() {
+        closed = true;
+        for(DatagramSocket sock : sockets) sock.close();
+    }
+
+    /**
+     * Reads replies from one socket and completes the matching query
+     */
+    private class Receiver implements Runnable {
+
+        private DatagramSocket sock;
+
+        public Receiver(DatagramSocket sock) {
+            this.sock = sock;
+        }
+
+        public void run() {
+            byte[] buffer = new byte[MAX_REPLY_SIZE];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            while(!closed) {
+                try {
+                    packet.setLength(buffer.length);
+                    sock.receive(packet);
+                    if(packet.getLength() < 12) continue;
+                    int id = ((buffer[0] & 0xff) << 8) | (buffer[1] & 0xff);
+                    CompletableFuture<byte[]> reply = inFlight.get(id);
+                    //Late replies to queries that were already retried or given up on are dropped
+                    if(reply != null) reply.complete(Arrays.copyOf(buffer, packet.getLength()));
+                } catch (SocketException e) {
+                    if(closed) return;
+                } catch (IOException e) {
+                    //Keep receiving, the query will be retried
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * A list of domains, e.g. the domains to spoof, matched on whole labels:
+ * "example.com" matches example.com and every subdomain of it, but not
+ * badexample.com. "*.example.com" matches only the subdomains.
+ *
+ * The domains are kept in a hash table keyed on the hash of each domain,
+ * so a lookup hashes every label suffix of the name asked for, right to
+ * left, and costs the same however long the list is.
+ */
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class DomainList {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    //Open addressed table, a hash of 0 marks an empty slot
+    private final long[] hashes;
+    private final String[] domains;
+    //True if the domain itself does not match, only its subdomains
+    private final boolean[] subdomainsOnly;
+    private final int mask;
+    private final int size;
+
+    public DomainList(List<String> entries) {
+        int capacity = 16;
+        while(capacity < entries.size() * 2) capacity <<= 1;
+        hashes = new long[capacity];
+        domains = new String[capacity];
+        subdomainsOnly = new boolean[capacity];
+        mask = capacity - 1;
+        int added = 0;
+        for(String entry : entries) {
+            String domain = entry.trim().toLowerCase();
+            if(domain.endsWith(".")) domain = domain.substring(0, domain.length() - 1);
+            boolean wildcard = domain.startsWith("*.");
+            if(wildcard) domain = domain.substring(2);
+            if(domain.isEmpty() || domain.startsWith("#")) continue;
+            long hash = hash(domain, 0, domain.length());
+            int slot = (int) hash & mask;
+            while(hashes[slot] != 0 && !(hashes[slot] == hash && domains[slot].equals(domain))) slot = (slot + 1) & mask;
+            if(hashes[slot] == 0) {
+                hashes[slot] = hash;
+                domains[slot] = domain;
+                subdomainsOnly[slot] = wildcard;
+                added++;
+            } else if(!wildcard) {
+                //Listed both ways, the plain entry covers the wildcard
+                subdomainsOnly[slot] = false;
+            }
+        }
+        size = added;
+    }
+
+    /**
+     * Reads one domain per line, blank lines and lines starting with # are skipped
+     */
+    public static DomainList load(String filename) throws IOException {
+        List<String> entries = new ArrayList<String>();
+        try (BufferedReader in = new BufferedReader(new FileReader(filename))) {
+            String line;
+            while((line = in.readLine()) != null) {
+                entries.add(line);
+            }
+        }
+        return new DomainList(entries);
+    }
+
+    /**
+     * @param name a domain name, without a trailing dot
+     * @return true if the name or one of its parent domains is on the list
+     */
+    public boolean matches(String name) {
+        if(size == 0) return false;
+        long hash = FNV_OFFSET;
+        int end = name.length();
+        for(int i = end - 1; i >= 0; i--) {
+            char c = name.charAt(i);
+            hash = (hash ^ Character.toLowerCase(c)) * FNV_PRIME;
+            //Look up each suffix that starts on a label
+            if(i == 0 || name.charAt(i - 1) == '.') {
+                if(lookup(name, i, end, hash == 0 ? 1 : hash)) return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean lookup(String name, int start, int end, long hash) {
+        for(int slot = (int) hash & mask; hashes[slot] != 0; slot = (slot + 1) & mask) {
+            if(hashes[slot] != hash) continue;
+            String domain = domains[slot];
+            if(domain.length() == end - start && name.regionMatches(true, start, domain, 0, domain.length())) {
+                return start > 0 || !subdomainsOnly[slot];
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hashes the characters right to left, the order matches() visits them in
+     */
+    private static long hash(String s, int start, int end) {
+        long hash = FNV_OFFSET;
+        for(int i = end - 1; i >= start; i--) {
+            hash = (hash ^ Character.toLowerCase(s.charAt(i))) * FNV_PRIME;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    public int size() {
+        return size;
+    }
+}
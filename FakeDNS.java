@@ -8,7 +8,9 @@
 import java.io.*;
 import java.math.BigInteger;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -16,6 +18,12 @@ import java.net.UnknownHostException;
 public class FakeDNS implements Runnable {
 
     private int portNo = 53;
+    //Worker threads for forwarding allowed queries to the real DNS server
+    private int forwardThreads = 8;
+    //Worker threads for the slow certificate and Censys lookups
+    private int lookupThreads = 8;
+    //Queries queued for each pool before further ones are dropped, clients will retry
+    private int queueLength = 256;
 
     //verbose = 0: print nothing
     //verbose = 1: print spoofed requests
@@ -23,44 +31,87 @@ public class FakeDNS implements Runnable {
     //verbose = 3: print spoofed, dropped and allowed requests and DNS details
     private int verbose;
 
-    //Realistic looking Flags,# or Qus and RRs info for a DNS response
-    private byte[] FlagsQusAndRRsInfo = Utils.hexStringToByteArray("81800001000100000000");
-    //Realistic looking name, type and class info for a DNS response
-    private byte[] nameTypeClass =  Utils.hexStringToByteArray("c00c00010001");
     // time to live of 10 seconds
-    private byte[] ttl =  Utils.hexStringToByteArray("0000000a");
+    private static final int SPOOF_TTL = 10;
+    //Address given in spoofed answers
+    private byte[] spoofAddress;
+    //Parses queries and forms spoofed answers, one per thread as they reuse their buffers
+    private final ThreadLocal<DNSCodec> codecs = ThreadLocal.withInitial(DNSCodec::new);
     // The address of a real DNS server.
     private String realDNSserver;
+    private int realDNSport;
+    //Sockets shared by every query forwarded to the real DNS server
+    private DNSForwarder forwarder;
+    //Forwarded and spoofed responses, served again until their TTL runs out
+    private DNSCache cache;
 
-    // allowList will get the real IP address returned from the "realDNSserver".
-    private String[] allowList;
+    // Domains not on the allow list will get the real IP address returned from the "realDNSserver".
+    // Read from the config on every query as it is replaced when its file changes.
+    private Config config;
+    //How often the allow list file is checked for changes
+    private int allowListCheckSeconds = 5;
+    //How often new certificate chains are written to disk
+    private int certCacheSaveSeconds = 30;
     private String defaultSpoofIP;
     private MITM mitm; 
-    private PrintWriter outLog;
+    private AsyncLog log;
     private String redirectHost;
     private boolean dnsOnly;
     private boolean passthrough;
     private String censysID;
     private String censysSecret;
+    //Certificate chains of requested domains, shared across runs
+    private CertCache certCache;
+    //Censys candidates by issuer CN, shared across runs
+    private AlternateHostStore alternateHostStore;
+    //Queries waiting on a certificate/Censys lookup that is already running, by domain
+    private ConcurrentHashMap<String, List<DatagramPacket>> pendingLookups;
+    //Censys lookups running, by issuer CN, so domains sharing an issuer share its lookup
+    private ConcurrentHashMap<String, CompletableFuture<Void>> censysLookups;
 
-    public FakeDNS(MITM mitm, int verbose, PrintWriter outLog, String redirectHost, boolean dnsOnly, boolean passthrough, Config config) {
+    public FakeDNS(MITM mitm, int verbose, AsyncLog log, String redirectHost, boolean dnsOnly, boolean passthrough, Config config) {
         this.mitm = mitm;
         this.verbose = verbose;
-        this.outLog = outLog;
+        this.log = log;
         this.redirectHost = redirectHost;
 	if(!dnsOnly) {
-	    mitm.setForwardingHost(redirectHost);
+	    mitm.setManualHost(redirectHost);
 	}
         this.dnsOnly = dnsOnly;
         this.passthrough = passthrough;
         this.realDNSserver=config.dnsIP;
-        this.allowList=config.allowList;
+        this.realDNSport=config.dnsPort;
+        this.config=config;
         this.censysID = config.censysID;
         this.censysSecret = config.censysSecret;
+        this.certCache = new CertCache(config.certCacheFile, log);
+        this.alternateHostStore = new AlternateHostStore(config.censysCacheFile, config.censysCacheTTL, log);
+        if(!dnsOnly) mitm.setAlternateHostStore(alternateHostStore);
+        this.pendingLookups = new ConcurrentHashMap<String, List<DatagramPacket>>();
+        this.censysLookups = new ConcurrentHashMap<String, CompletableFuture<Void>>();
+        this.cache = new DNSCache(4096);
+        Metrics.setDNSCache(cache);
     }
 
     public void run() {
         DatagramSocket sock = null;
+        ExecutorService forwardPool = newPool(forwardThreads);
+        ExecutorService lookupPool = newPool(lookupThreads);
+        ScheduledExecutorService reloader = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "dns-reloader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reloader.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    if(config.reloadAllowList()) log.println(1, "- Reloaded allow list, "+config.allowList.size()+" domains");
+                } catch (IOException e) {
+                    log.println(0, "- Could not reload allow list: "+e.getMessage());
+                }
+            }
+        }, allowListCheckSeconds, allowListCheckSeconds, TimeUnit.SECONDS);
+        reloader.scheduleWithFixedDelay(() -> certCache.save(), certCacheSaveSeconds, certCacheSaveSeconds, TimeUnit.SECONDS);
         try {
             //Get IP address of MITM
             Enumeration<NetworkInterface> en = NetworkInterface.getNetworkInterfaces();
@@ -75,174 +126,337 @@ public class FakeDNS implements Runnable {
                     break;
                 }
             }
+            if(defaultSpoofIP == null) {
+                log.println(0, "- No network interface found, spoofing with the loopback address");
+                defaultSpoofIP = InetAddress.getLoopbackAddress().getHostAddress();
+            }
+            spoofAddress = InetAddress.getByName(defaultSpoofIP).getAddress();
+            //Keep a couple of sockets open to the real DNS server, waiting up to 2s for each of 3 attempts
+            forwarder = new DNSForwarder(realDNSserver, realDNSport, 2, 2000, 2);
             //Open a UDP port
             sock = new DatagramSocket(portNo);
             sock.setSoTimeout(500);
-            byte[] buffer = new byte[128];
+            final DatagramSocket replySock = sock;
+            byte[] buffer = new byte[DNSCodec.MAX_MESSAGE];
+            ByteBuffer request = ByteBuffer.wrap(buffer);
             DatagramPacket incoming = new DatagramPacket(buffer, buffer.length);
-            if (verbose>0) System.out.println("- Listening on UDP port: "+portNo);
+            //Spoofed answers are sent straight from the codec's buffer
+            DatagramPacket reply = new DatagramPacket(buffer, 0);
+            DNSCodec codec = codecs.get();
+            log.println(1, "- Listening on UDP port: "+portNo);
 
             while(true) {
                 if(Thread.currentThread().isInterrupted()) throw new InterruptedException();
-                if(dnsOnly || mitm.isConnectionWaiting()) {
-                    // Listen for a request
-                    try { sock.receive(incoming); } catch (SocketTimeoutException e) {continue;}
-                    byte[] origDNSrequest = incoming.getData();
-
-                    //Find the port and IP of sender
-                    int portFrom = incoming.getPort();
-                    InetAddress ipAddressFrom = incoming.getAddress();
-
-                    //Parse the DNS request
-                    String urlRequested = parseDNSrequest(origDNSrequest);
-
-                    int resultInt = Utils.stringListMatch(urlRequested,allowList);
-                    if (resultInt<0) {
-                        if (verbose>1) System.out.println("- Requested URL: "+urlRequested+" on allow list. Returning real DNS response.");
-                        outLog.println("- Requested URL: "+urlRequested+" on allow list. Returning real DNS response.");
-                        // Request real response from the real DNS server
-                        byte[] dnsReply = getRealDNSresponse(origDNSrequest);
-                        // Forward that response back to the original requester.
-                        DatagramPacket reply = new DatagramPacket(dnsReply,dnsReply.length,ipAddressFrom,portFrom);
-                        sock.send(reply);
-                    } else {
-                        if (verbose>0) System.out.println("- Requested URL: "+urlRequested+" default action. Sending default IP: "+defaultSpoofIP);
-                        outLog.println("- Requested URL: "+urlRequested+" default action. Sending default IP: "+defaultSpoofIP);
-                        if(passthrough || alternateHostResponse(urlRequested)) {
-                            //Send a spoofed address back to the original requester.
-                            byte[] response = formDNSresponse(origDNSrequest, urlRequested.length()+1, defaultSpoofIP);
-                            DatagramPacket reply = new DatagramPacket(response,response.length,ipAddressFrom,portFrom);
-                            sock.send(reply);
+                // Listen for a request
+                incoming.setLength(buffer.length);
+                try { sock.receive(incoming); } catch (SocketTimeoutException e) {continue;}
+                Metrics.DNS_QUERIES.inc();
+
+                //Find the port and IP of sender
+                final int portFrom = incoming.getPort();
+                final InetAddress ipAddressFrom = incoming.getAddress();
+
+                //Parse the DNS request
+                request.clear();
+                request.limit(incoming.getLength());
+                if(!codec.parse(request)) {
+                    Metrics.DNS_DROPPED.inc();
+                    continue;
+                }
+                final String urlRequested = codec.name();
+                if(verbose > 2) logRequest(buffer, incoming.getLength());
+
+                if (!config.allowList.matches(urlRequested)) {
+                    //Copy the request out as the buffer is reused while workers handle it
+                    final byte[] origDNSrequest = Arrays.copyOf(buffer, incoming.getLength());
+                    byte[] cachedReply = cache.get(origDNSrequest);
+                    if (cachedReply != null) {
+                        log.println(3, "- Requested URL: "+urlRequested+" answered from cache.");
+                        sock.send(new DatagramPacket(cachedReply,cachedReply.length,ipAddressFrom,portFrom));
+                        continue;
+                    }
+                    log.println(2, "- Requested URL: "+urlRequested+" on allow list. Returning real DNS response.");
+                    Metrics.DNS_FORWARDED.inc();
+                    submit(forwardPool, new Runnable() {
+                        public void run() {
+                            try {
+                                // Request real response from the real DNS server
+                                byte[] dnsReply = getRealDNSresponse(origDNSrequest);
+                                cache.put(origDNSrequest, dnsReply);
+                                // Forward that response back to the original requester.
+                                DatagramPacket reply = new DatagramPacket(dnsReply,dnsReply.length,ipAddressFrom,portFrom);
+                                replySock.send(reply);
+                            } catch (IOException e) {
+                                log.println(0, e.getMessage());
+                            }
                         }
+                    });
+                } else {
+                    log.println(1, "- Requested URL: "+urlRequested+" default action. Sending default IP: "+defaultSpoofIP);
+                    //AAAA, HTTPS and other queries get no records straight away, so clients use the A record
+                    if(!codec.wantsAddress() || passthrough || dnsOnly || mitm.getRedirectHosts().containsKey(urlRequested)) {
+                        //Redirect already decided, answer straight away
+                        reply.setAddress(ipAddressFrom);
+                        reply.setPort(portFrom);
+                        sendSpoofedResponse(sock, codec, reply, urlRequested);
+                    } else {
+                        DatagramPacket query = new DatagramPacket(Arrays.copyOf(buffer, incoming.getLength()), incoming.getLength(), ipAddressFrom, portFrom);
+                        lookupAlternateHost(lookupPool, replySock, query, urlRequested);
                     }
                 }
             }
         } catch (InterruptedException | IOException e) {
             if(e instanceof IOException) {
-                System.out.println(e.getMessage());
-                outLog.println(e.getMessage());
+                log.println(0, e.getMessage());
             }
         } finally {
+            forwardPool.shutdownNow();
+            lookupPool.shutdownNow();
+            reloader.shutdownNow();
+            if(forwarder != null) forwarder.close();
             if(sock != null) sock.close();
         }
     }
 
+    /**
+     * Runs the certificate and Censys lookups for a domain on the lookup pool.
+     * Queries for a domain that is already being looked up wait on that lookup
+     * instead of starting another one.
+     */
+    private void lookupAlternateHost(ExecutorService lookupPool, final DatagramSocket sock, DatagramPacket query, final String urlRequested) {
+        final boolean[] first = new boolean[1];
+        pendingLookups.compute(urlRequested, (url, waiting) -> {
+            if(waiting == null) {
+                waiting = new ArrayList<DatagramPacket>();
+                first[0] = true;
+            }
+            waiting.add(query);
+            return waiting;
+        });
+        if(!first[0]) return;
+        boolean submitted = submit(lookupPool, new Runnable() {
+            public void run() {
+                boolean redirected = false;
+                try {
+                    redirected = alternateHostResponse(urlRequested);
+                } finally {
+                    List<DatagramPacket> waiting = pendingLookups.remove(urlRequested);
+                    if(redirected) {
+                        DNSCodec codec = codecs.get();
+                        for(DatagramPacket query : waiting) {
+                            try {
+                                if(codec.parse(ByteBuffer.wrap(query.getData(), 0, query.getLength()))) {
+                                    sendSpoofedResponse(sock, codec, query, urlRequested);
+                                }
+                            } catch (IOException e) {
+                                log.println(0, e.getMessage());
+                            }
+                        }
+                    }
+                }
+            }
+        });
+        //Let the client's retry start a fresh lookup
+        if(!submitted) pendingLookups.remove(urlRequested);
+    }
+
+    /**
+     * Sends a spoofed address back to the original requester.
+     *
+     * @param codec holding the parsed query
+     * @param packet addressed to the requester, its data is replaced by the response
+     */
+    private void sendSpoofedResponse(DatagramSocket sock, DNSCodec codec, DatagramPacket packet, String urlRequested) throws IOException {
+        //The requester's TLS sessions for the domain go to the redirect host current as it is answered
+        if(mitm != null && !passthrough && codec.wantsAddress()) mitm.pinRedirectHost(packet.getAddress(), urlRequested);
+        ByteBuffer response = codec.spoof(spoofAddress, SPOOF_TTL);
+        Metrics.DNS_SPOOFED.inc();
+        packet.setData(response.array(), 0, response.limit());
+        sock.send(packet);
+    }
+
+    /**
+     * @return a fixed size pool with a bounded queue
+     */
+    private ExecutorService newPool(int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueLength));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * @return false if the pool is full or shutting down, the query is then dropped
+     */
+    private boolean submit(ExecutorService pool, Runnable task) {
+        try {
+            pool.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            Metrics.DNS_DROPPED.inc();
+            return false;
+        }
+    }
+
+    /**
+     * Sets the UDP port to listen on, must be called before run
+     */
+    public void setPort(int portNo) {
+        this.portNo = portNo;
+    }
+
+    /**
+     * Writes certificate chains fetched since the last save to disk, called at shutdown
+     */
+    public void saveCertCache() {
+        certCache.save();
+    }
+
+    /**
+     * @return the cache of DNS responses, for its hit and miss counters
+     */
+    public DNSCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Fetches the certificate chains of the given domains and looks up alternate
+     * hosts for their issuers before the test starts, so queries for them are
+     * answered from memory. Domains that are not spoofed are skipped. Blocks until
+     * every lookup has finished.
+     *
+     * @param threads lookups run at once
+     */
+    public void prefetch(List<String> domains, int threads) throws InterruptedException {
+        if(dnsOnly || passthrough) {
+            log.println(1, "- Not redirecting, nothing to prefetch");
+            return;
+        }
+        long started = System.nanoTime();
+        Set<String> spoofed = new LinkedHashSet<String>();
+        for(String domain : domains) {
+            domain = domain.trim().toLowerCase();
+            if(domain.isEmpty() || domain.startsWith("#")) continue;
+            if(config.allowList.matches(domain)) spoofed.add(domain);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            //Chains first, so domains sharing an issuer share its Censys lookup
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for(final String domain : spoofed) {
+                if(certCache.get(domain) != null) continue;
+                tasks.add(Executors.callable(() -> {
+                    Cert[] certs = CheckCertificate.getCertificates(domain);
+                    if(certs != null) certCache.put(domain, certs);
+                }));
+            }
+            log.println(1, "- Prefetching "+tasks.size()+" certificate chains for "+spoofed.size()+" domains");
+            pool.invokeAll(tasks);
+            certCache.save();
+
+            if(redirectHost == null) {
+                Set<String> issuers = new HashSet<String>();
+                for(String domain : spoofed) {
+                    Cert[] certs = certCache.get(domain);
+                    if(certs != null && certs.length > 1 && !alternateHostStore.contains(certs[1].getCN())) issuers.add(certs[1].getCN());
+                }
+                tasks.clear();
+                for(final String issuerCN : issuers) {
+                    tasks.add(Executors.callable(() -> lookupIssuer(issuerCN)));
+                }
+                log.println(1, "- Prefetching alternate hosts for "+tasks.size()+" issuers");
+                pool.invokeAll(tasks);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        //Everything is in memory now, pick the redirect hosts
+        int ready = 0;
+        for(String domain : spoofed) {
+            if(certCache.get(domain) != null && alternateHostResponse(domain)) ready++;
+        }
+        log.println(1, "- Prefetched "+ready+" of "+spoofed.size()+" domains in "+TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)+" ms");
+    }
+
     private boolean alternateHostResponse(String urlRequested) {
         if(dnsOnly || mitm.getRedirectHosts().containsKey(urlRequested)) return true;
-        Cert[] certs = CheckCertificate.getCertificates(urlRequested);
+        Cert[] certs = certCache.get(urlRequested);
+        if(certs == null) {
+            certs = CheckCertificate.getCertificates(urlRequested);
+            if(certs != null) certCache.put(urlRequested, certs);
+        }
         if(certs != null && certs.length > 1) {
-            if(verbose > 1) System.out.println("- CN of Issuer for "+urlRequested + " = " + certs[1].getCN());
-            outLog.println("- CN of Issuer for "+urlRequested + " = " + certs[1].getCN());
-            mitm.addRealLeafCert(urlRequested, certs[0].getDer());
-            mitm.addRealIssuerCert(urlRequested, certs[1].getDer());
+            log.println(2, "- CN of Issuer for "+urlRequested + " = " + certs[1].getCN());
+            mitm.addRealChain(urlRequested, certs);
             if(this.redirectHost != null) {
                 mitm.addRedirectHost(urlRequested, this.redirectHost);
-                mitm.setForwardingHost(this.redirectHost);
-                mitm.setRealHost(urlRequested);
             } else {
-                String alternateHost;
-                if(!mitm.getCachedAlternateHosts().containsKey(urlRequested)) {
-                    alternateHost = CheckCertificate.censysLookup(urlRequested, certs[1].getCN(), censysID, censysSecret);
-                    if(alternateHost == null) {
-                        System.out.println("- No alternate hosts for given " + urlRequested + ". Dropping request...");
-                        outLog.println("- No alternate hosts for given " + urlRequested + ". Dropping request...");
-                        return false;
-                    }
-                    mitm.addCachedAlternateHost(urlRequested, alternateHost);
-                } else {
-                    alternateHost = mitm.getCachedAlternateHosts().get(urlRequested);
+                String issuerCN = certs[1].getCN();
+                if(!alternateHostStore.contains(issuerCN)) lookupIssuer(issuerCN);
+                String alternateHost = alternateHostStore.next(issuerCN, urlRequested);
+                if(alternateHost == null) {
+                    log.println(0, "- No alternate hosts for given " + urlRequested + ". Dropping request...");
+                    return false;
                 }
-                mitm.addRedirectHost(urlRequested, alternateHost);
-                mitm.setForwardingHost(alternateHost);
-                mitm.setRealHost(urlRequested);
+                mitm.addRedirectHost(urlRequested, alternateHost, issuerCN);
             }
-            //			if (verbose>0) System.out.println("- Forwarding " + urlRequested + " traffic to: " + mitm.getForwardingHost());
-            //			outLog.println("- Forwarding " + urlRequested + " traffic to: " + mitm.getForwardingHost());
             return true;
         } else {
-            System.out.println("- Less than two certificates in chain. Dropping request...");
-            outLog.println("- Less than two certificates in chain. Dropping request...");
+            log.println(0, "- Less than two certificates in chain. Dropping request...");
         }
         return false;
     }
 
     /**
-     * @param data e.g. a DNS request 
-     * @return the response received from sending  data over socket
+     * Looks the issuer's alternate hosts up on Censys and stores them. A caller
+     * asking while a lookup for the same issuer is running waits for it instead.
      */
-    // sock is a UDP socket and data is a DNS request.
-    public byte[] getRealDNSresponse(byte[] data)
-        throws UnknownHostException, IOException {
-        DatagramSocket realDNSsocket = new DatagramSocket();
-        DatagramPacket requestPacket = new DatagramPacket(data,data.length,InetAddress.getByName(realDNSserver),53);
-        realDNSsocket.send(requestPacket);
-        byte[] dnsReply = new byte[1024];
-        DatagramPacket dnsReplyPacket = new DatagramPacket(dnsReply,dnsReply.length);
-        realDNSsocket.receive(dnsReplyPacket);
-        return dnsReply;
+    private void lookupIssuer(String issuerCN) {
+        CompletableFuture<Void> lookup = new CompletableFuture<Void>();
+        CompletableFuture<Void> running = censysLookups.putIfAbsent(issuerCN, lookup);
+        if(running != null) {
+            running.join();
+            return;
+        }
+        try {
+            //A lookup may have finished since the caller checked
+            if(alternateHostStore.contains(issuerCN)) return;
+            List<String> candidates = CheckCertificate.censysLookup(issuerCN, censysID, censysSecret);
+            if(candidates != null) alternateHostStore.put(issuerCN, candidates);
+        } finally {
+            censysLookups.remove(issuerCN);
+            lookup.complete(null);
+        }
     }
 
     /**
-     * @param dnsQuery A DNS query
-     * @param urlLength The length of the URL in that query
-     * @param theSpoofIP An IP address
-     * @return A DNS response that will answer the query with the IP address "theSpoofIP"
+     * @param data e.g. a DNS request 
+     * @return the response received from the real DNS server, trimmed to its length
      */
-    public byte[] formDNSresponse(byte[] dnsQuery, int urlLength,
-            String theSpoofIP) {
-        byte[] response = new byte[urlLength+33];
-        System.arraycopy(dnsQuery, 0, response, 0, 2);  //The Transaction ID:
-        System.arraycopy(FlagsQusAndRRsInfo, 0, response, 2, 10);
-        System.arraycopy(dnsQuery, 12, response, 12, urlLength+5); //The query
-        //The Answer
-        System.arraycopy(nameTypeClass, 0, response, urlLength+17, 6); 
-        System.arraycopy(ttl, 0, response, urlLength+23, 4); 
-        //Length of IP address is 4 bytes
-        response[urlLength+27]= 0x00;
-        response[urlLength+28]= 0x04;
-        //The Address
-        String[] IPparts = theSpoofIP.split("\\.");
-        response[urlLength+29]= (byte)(Integer.parseInt(IPparts[0]));
-        response[urlLength+30]= (byte)(Integer.parseInt(IPparts[1]));
-        response[urlLength+31]= (byte)(Integer.parseInt(IPparts[2]));
-        response[urlLength+32]= (byte)(Integer.parseInt(IPparts[3]));
-        return response;
+    public byte[] getRealDNSresponse(byte[] data)
+        throws UnknownHostException, IOException {
+        long started = System.nanoTime();
+        try {
+            return forwarder.forward(data);
+        } catch (IOException e) {
+            Metrics.DNS_FORWARD_ERRORS.inc();
+            throw e;
+        } finally {
+            Metrics.DNS_FORWARD_SECONDS.observeSince(started);
+        }
     }
 
     /**
-     * This does not support more than one URL in the query
-     *
-     * @param data A DNS query
-     * @return the URL asked for in the query as a String
+     * Prints the header of a DNS request
      */
-    public String parseDNSrequest(byte[] data) {
-        if (verbose>2) {
-            System.out.println(Utils.byteArrayToHexString(data));
-            System.out.println("- Transaction ID:"+Utils.byteArrayToHexString(data,0,2));
-            System.out.println("- Flags:"+Utils.byteArrayToHexString(data,2,4));
-            System.out.println("- Questions:"+Utils.byteArrayToHexString(data,4,6));
-            System.out.println("- Answers RRs:"+Utils.byteArrayToHexString(data,6,8));
-            System.out.println("- Authority RRs:"+Utils.byteArrayToHexString(data,8,10));
-            System.out.println("- Additional RRs:"+Utils.byteArrayToHexString(data,10,12));
-        }
-
-        //Find the domain name being requested
-        ArrayList<String> urlList = new ArrayList<String>();
-        int pos = 12;
-        Integer length = new Integer(data[pos]);
-        int totalLength = length.intValue();
-        while (length!=0) {
-            String part = new String(data, pos+1,length);
-            urlList.add(part);
-            pos=pos+length+1;
-            length = new Integer(data[pos]);
-            totalLength = totalLength+length.intValue()+1;
-        }
-        String urlString=urlList.get(0);
-        for (int i =1;i<urlList.size();i++) {
-            urlString=urlString+"."+urlList.get(i);
-        }
-        return urlString;
+    private void logRequest(byte[] data, int length) {
+        log.println(3, Utils.byteArrayToHexString(data,0,length));
+        log.println(3, "- Transaction ID:"+Utils.byteArrayToHexString(data,0,2));
+        log.println(3, "- Flags:"+Utils.byteArrayToHexString(data,2,4));
+        log.println(3, "- Questions:"+Utils.byteArrayToHexString(data,4,6));
+        log.println(3, "- Answers RRs:"+Utils.byteArrayToHexString(data,6,8));
+        log.println(3, "- Authority RRs:"+Utils.byteArrayToHexString(data,8,10));
+        log.println(3, "- Additional RRs:"+Utils.byteArrayToHexString(data,10,12));
     }
 
 }
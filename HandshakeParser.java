@@ -0,0 +1,106 @@
+/**
+ * Splits the plaintext handshake records sent by one side of a session
+ * into handshake messages. A record can hold several messages, e.g. a
+ * ServerHello, Certificate and ServerHelloDone, and a message can span
+ * several records, e.g. a long certificate chain.
+ *
+ * Messages that lie wholly inside a record are handed over in place. Only
+ * a message split across records is gathered, in a buffer of its own, and
+ * handed over as soon as its last byte arrives.
+ */
+
+public class HandshakeParser {
+
+    //Type byte and 3 byte length
+    public static final int HEADER_LENGTH = 4;
+    //Longest message gathered across records, longer ones are skipped
+    private static final int MAX_MESSAGE = 1 << 17;
+
+    public interface Listener {
+        /**
+         * @param type handshake message type
+         * @param offset start of the message, at its type byte
+         * @param length length of the message including its header
+         */
+        void message(int type, byte[] data, int offset, int length);
+    }
+
+    //Start of a message split across records, created when first needed
+    private byte[] pending;
+    private int pendingLength;
+    //Bytes still to skip of an overlong message
+    private int skipRemaining;
+
+    /**
+     * Parses the body of a handshake record, calling the listener for every
+     * message it completes. The data is only valid during the call.
+     */
+    public void feed(byte[] data, int offset, int length, Listener listener) {
+        int pos = offset;
+        int end = offset + length;
+        while(pos < end) {
+            if(skipRemaining > 0) {
+                int skipped = Math.min(skipRemaining, end - pos);
+                skipRemaining -= skipped;
+                pos += skipped;
+            } else if(pendingLength > 0) {
+                if(pendingLength < HEADER_LENGTH) {
+                    int taken = Math.min(HEADER_LENGTH - pendingLength, end - pos);
+                    append(data, pos, taken);
+                    pos += taken;
+                    if(pendingLength < HEADER_LENGTH) continue;
+                    if(messageLength(pending, 0) > MAX_MESSAGE) {
+                        skipRemaining = messageLength(pending, 0) - HEADER_LENGTH;
+                        pendingLength = 0;
+                        continue;
+                    }
+                }
+                int total = messageLength(pending, 0);
+                int taken = Math.min(total - pendingLength, end - pos);
+                append(data, pos, taken);
+                pos += taken;
+                if(pendingLength == total) {
+                    pendingLength = 0;
+                    listener.message(pending[0] & 0xff, pending, 0, total);
+                }
+            } else if(end - pos >= HEADER_LENGTH && end - pos >= messageLength(data, pos)) {
+                int total = messageLength(data, pos);
+                listener.message(data[pos] & 0xff, data, pos, total);
+                pos += total;
+            } else if(end - pos >= HEADER_LENGTH && messageLength(data, pos) > MAX_MESSAGE) {
+                skipRemaining = messageLength(data, pos) - (end - pos);
+                pos = end;
+            } else {
+                //Continues in the next record
+                append(data, pos, end - pos);
+                pos = end;
+            }
+        }
+    }
+
+    /**
+     * Drops any partly gathered message, e.g. once the handshake is encrypted
+     */
+    public void reset() {
+        pendingLength = 0;
+        skipRemaining = 0;
+    }
+
+    private void append(byte[] data, int offset, int length) {
+        int needed = pendingLength + length;
+        if(pending == null || pending.length < needed) {
+            byte[] grown = new byte[Math.max(needed, pending == null ? 1024 : 2 * pending.length)];
+            if(pending != null) System.arraycopy(pending, 0, grown, 0, pendingLength);
+            pending = grown;
+        }
+        System.arraycopy(data, offset, pending, pendingLength, length);
+        pendingLength += length;
+    }
+
+    /**
+     * @return length of the message starting at offset, including its header
+     */
+    private static int messageLength(byte[] data, int offset) {
+        return HEADER_LENGTH + (((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff));
+    }
+}
@@ -6,12 +6,14 @@
  */
 
 import java.io.*;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.stream.*;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
+import com.sun.net.httpserver.HttpServer;
 
 import java.text.*;
 import java.time.LocalDateTime;
@@ -32,6 +34,38 @@ public class Launcher {
         boolean passthrough = false;
     @Parameter(names={"--whitelist", "-w"}, description = "New line delimited file of domains to spoof to our TLS proxy.", required = false)
         String whiteListFile;
+    @Parameter(names={"--results", "-r"}, description = "Optionally write a JSON record of each TLS session to this file, one per line", required = false)
+        String resultsFile;
+    @Parameter(names={"--metrics-port"}, description = "Optionally serve live metrics in Prometheus format on this local port", required = false)
+        int metricsPort = 0;
+    @Parameter(names={"--dns-port"}, description = "UDP port to listen for DNS queries on", required = false)
+        int dnsPort = 53;
+    @Parameter(names={"--tls-port"}, description = "TCP port to listen for TLS connections on", required = false)
+        int tlsPort = 443;
+    @Parameter(names={"--sessions", "-s"}, description = "Maximum number of TLS sessions proxied concurrently", required = false)
+        int maxSessions = 512;
+    @Parameter(names={"--connect-threads"}, description = "Threads opening connections to redirect hosts", required = false)
+        int connectThreads = 32;
+    @Parameter(names={"--prefetch"}, description = "Optionally fetch certificate chains and alternate hosts for the domains in this file, one per line, before starting", required = false)
+        String prefetchFile;
+    @Parameter(names={"--prefetch-threads"}, description = "Lookups run at once when prefetching", required = false)
+        int prefetchThreads = 16;
+    @Parameter(names={"--connect-timeout"}, description = "Milliseconds from a client connecting until the redirect host is connected", required = false)
+        long connectTimeout = 5000;
+    @Parameter(names={"--hello-timeout"}, description = "Milliseconds from the ClientHello being forwarded until the ServerHello", required = false)
+        long helloTimeout = 5000;
+    @Parameter(names={"--certificate-timeout"}, description = "Milliseconds from the server's Certificate until the client responds", required = false)
+        long certificateTimeout = 5000;
+    @Parameter(names={"--app-data-timeout"}, description = "Milliseconds from the client's ChangeCipherSpec until it sends application data", required = false)
+        long appDataTimeout = 5000;
+    @Parameter(names={"--learn-timeouts"}, description = "Wait for the client to answer each domain's certificate only as long as apps took in earlier successful sessions", required = false)
+        boolean learnTimeouts = false;
+    @Parameter(names={"--timeout-multiplier"}, description = "Learned timeouts are the 99th percentile of earlier answers times this", required = false)
+        double timeoutMultiplier = 3;
+    @Parameter(names={"--timeout-floor"}, description = "Shortest learned timeout in milliseconds", required = false)
+        long timeoutFloor = 500;
+    @Parameter(names={"--timeout-ceiling"}, description = "Longest learned timeout in milliseconds", required = false)
+        long timeoutCeiling = 10000;
     @Parameter(names={"--config", "-c"}, description = "Config file containing required DNS IP and Censys account credentials", required = true)
         String configFile;
 
@@ -73,20 +107,52 @@ public class Launcher {
             main.logFile = "log-" + LocalDateTime.now();
             System.out.println("Writing log to: " + main.logFile);
         }
-        PrintWriter logOut = new PrintWriter(new BufferedWriter(new FileWriter(main.logFile, true)));
+        CheckCertificate.portNo = config.upstreamPort;
+        CheckCertificate.censysURL = config.censysURL;
+        CheckCertificate.censysPages = config.censysPages;
+        AsyncLog log = new AsyncLog(main.logFile, main.verbose);
+        CheckCertificate.log = log;
+        HttpServer metricsServer = null;
+        if(main.metricsPort > 0) {
+            metricsServer = Metrics.serve(main.metricsPort);
+            System.out.println("Serving metrics on: http://localhost:" + main.metricsPort + "/metrics");
+        }
+        final HttpServer metrics = metricsServer;
         FakeDNS dns;
         if(main.dnsOnly) {
-            dns = new FakeDNS(null, main.verbose, logOut, null, true, false, config);
+            dns = new FakeDNS(null, main.verbose, log, null, true, false, config);
+            dns.setPort(main.dnsPort);
             new Thread(dns).start();
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    dns.saveCertCache();
+                    if(metrics != null) metrics.stop(0);
+                    log.println(AsyncLog.FILE_ONLY, Metrics.format());
+                    log.close();
+                }
+            });
             return;
         } else {
             MITM mitm;
             if(main.redirectHost == null) {
-                mitm = new MITM(main.verbose, logOut, false, main.passthrough);
-                dns = new FakeDNS(mitm, main.verbose, logOut, null, false, main.passthrough, config);
+                mitm = new MITM(main.verbose, log, false, main.passthrough, main.maxSessions);
+                dns = new FakeDNS(mitm, main.verbose, log, null, false, main.passthrough, config);
             } else {
-                mitm = new MITM(main.verbose, logOut, true, main.passthrough);
-                dns = new FakeDNS(mitm, main.verbose, logOut, main.redirectHost, false, main.passthrough, config);
+                mitm = new MITM(main.verbose, log, true, main.passthrough, main.maxSessions);
+                dns = new FakeDNS(mitm, main.verbose, log, main.redirectHost, false, main.passthrough, config);
+            }
+            dns.setPort(main.dnsPort);
+            mitm.setPorts(main.tlsPort, config.upstreamPort);
+            mitm.setConnectThreads(main.connectThreads);
+            mitm.setTimeouts(main.connectTimeout, main.helloTimeout, main.certificateTimeout, main.appDataTimeout);
+            TimingHistory timings = main.learnTimeouts ? new TimingHistory(config.timingHistoryFile, main.timeoutMultiplier, main.timeoutFloor, main.timeoutCeiling, log) : null;
+            mitm.setTimingHistory(timings);
+            ResultLog results = main.resultsFile != null ? new ResultLog(main.resultsFile, log) : null;
+            mitm.setResultLog(results);
+            if(main.prefetchFile != null) {
+                System.out.println("Prefetching domains in: " + main.prefetchFile);
+                dns.prefetch(Files.readAllLines(new File(main.prefetchFile).toPath()), main.prefetchThreads);
             }
             Scanner scan = new Scanner(System.in);
             Thread dnsThread = new Thread(dns);
@@ -99,8 +165,15 @@ public class Launcher {
             Runtime.getRuntime().addShutdownHook(new Thread() {
                 @Override
                 public void run() {
-                    logOut.flush();
-                    logOut.close();
+                    DNSCache cache = dns.getCache();
+                    log.println(AsyncLog.FILE_ONLY, "- DNS cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses, " + cache.size() + " entries");
+                    LookupClient.close();
+                    if(results != null) results.close();
+                    if(timings != null) timings.save();
+                    dns.saveCertCache();
+                    if(metrics != null) metrics.stop(0);
+                    log.println(AsyncLog.FILE_ONLY, Metrics.format());
+                    log.close();
                 }
             });
         }
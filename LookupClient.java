@@ -0,0 +1,91 @@
+/**
+ * Connections shared by every certificate and Censys lookup. The HTTP
+ * client keeps a pool of keep-alive connections to Censys, and the probe
+ * SSLContext caches sessions so repeated certificate fetches from a host
+ * can resume rather than perform a full handshake.
+ */
+
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+public class LookupClient {
+
+    //Timeout for connecting to and reading from Censys
+    private static final int HTTP_TIMEOUT = 10000;
+
+    private static CloseableHttpClient httpClient;
+    private static SSLContext probeContext;
+
+    /**
+     * @return the HTTP client shared by all Censys lookups, created on first use
+     */
+    public static synchronized CloseableHttpClient httpClient() {
+        if(httpClient == null) {
+            PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+            connectionManager.setMaxTotal(20);
+            connectionManager.setDefaultMaxPerRoute(10);
+            RequestConfig requestConfig = RequestConfig.custom()
+                    .setConnectTimeout(HTTP_TIMEOUT)
+                    .setSocketTimeout(HTTP_TIMEOUT)
+                    .setConnectionRequestTimeout(HTTP_TIMEOUT)
+                    .build();
+            httpClient = HttpClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                    .setDefaultRequestConfig(requestConfig)
+                    .evictIdleConnections(30, TimeUnit.SECONDS)
+                    .build();
+        }
+        return httpClient;
+    }
+
+    /**
+     * @return the all-trusting SSLContext used to fetch certificate chains, created on first use
+     */
+    public static synchronized SSLContext probeContext() throws Exception {
+        if(probeContext == null) {
+            TrustManager[] trustAllCerts = new TrustManager[] { new X509TrustManager() {
+                public X509Certificate[] getAcceptedIssuers() {
+                    return null;
+                }
+
+                public void checkClientTrusted(X509Certificate[] certs, String authType) {
+                }
+
+                public void checkServerTrusted(X509Certificate[] certs, String authType) {
+                }
+            } };
+            //Any version the JDK supports, so chains can be fetched from TLS 1.3 only servers
+            SSLContext sc = SSLContext.getInstance("TLS");
+            sc.init(null, trustAllCerts, new SecureRandom());
+            sc.getClientSessionContext().setSessionCacheSize(1024);
+            sc.getClientSessionContext().setSessionTimeout(3600);
+            probeContext = sc;
+        }
+        return probeContext;
+    }
+
+    /**
+     * Closes pooled connections, called when Spinner shuts down
+     */
+    public static synchronized void close() {
+        try {
+            if(httpClient != null) httpClient.close();
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+        }
+        httpClient = null;
+        probeContext = null;
+    }
+}
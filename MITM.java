@@ -1,6 +1,6 @@
 /**
  * Man in the middle server that listens for connections on port 443.
- * Forwards traffic to a specified host and, decodes stages of 
+ * Forwards traffic to a specified host and, decodes stages of
  * TLS handshake and prints to STDOUT.
  * Any fatal handshake alerts will close the connection.
  *
@@ -9,10 +9,33 @@
 
 import java.net.*;
 import java.io.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class MITM implements Runnable {
 
+    //Handshake message types acted on
+    private static final int CLIENT_HELLO = 1;
+    private static final int SERVER_HELLO = 2;
+    private static final int CERTIFICATE = 11;
+    private static final int TLS13 = 0x0304;
+    //Shortest encrypted record holding a TLS 1.3 Finished: 4 byte header, 32 byte hash,
+    //content type and 8 byte tag. An encrypted alert is shorter.
+    private static final int MIN_TLS13_FINISHED = 45;
+
+    //Phases of a session, each with its own time budget
+    private static final int CONNECT = 0;
+    private static final int HELLO = 1;
+    private static final int CERTIFICATE_RESPONSE = 2;
+    private static final int APP_DATA = 3;
+    private static final String[] PHASE_NAMES = {"connect", "server_hello", "certificate_response", "app_data"};
+    //Devices with no DNS answers or sessions for this long have their redirects dropped, checked every minute
+    private static final long CLIENT_IDLE_MS = 10 * 60 * 1000;
+    private static final long CLIENT_SWEEP_MS = 60 * 1000;
+    //How often ready upstream connections that have gone stale are closed
+    private static final long POOL_SWEEP_MS = 5 * 1000;
+
     //Listening on port no
     private int clientPortNo = 443;
     //Forward traffic to host on port
@@ -23,485 +46,343 @@ public class MITM implements Runnable {
     //verbose = 1: print forwarding details
     //verbose = 2: print handshake details
     private int verbose;
-    private long connectionTimeout = 5000;
-    private PrintWriter outLog;
-    private Map<String, byte[]> realLeafCerts;
-    private Map<String, byte[]> realIssuerCerts;
-    private volatile boolean connectionWaiting = true;
+    //Maximum number of sessions proxied at the same time
+    private int maxSessions;
+    //Threads opening upstream connections that were not ready in the pool
+    private int connectThreads = 32;
+    //Milliseconds allowed for each phase: client connect to upstream connect, ClientHello to
+    //ServerHello, Certificate to the client's response, and client CCS to application data
+    private long[] phaseTimeouts = {5000, 5000, 5000, 5000};
+    //Deadlines of every session, only touched by the event loop
+    private TimerWheel timers;
+    //How fast apps answered each domain's certificate before, null unless timeouts are learned
+    private TimingHistory timingHistory;
+    private AsyncLog log;
+    //Fingerprints of the chains served by the requested domains
+    private CertIndex realChains;
     private boolean manual = false;
-    private volatile String forwardingHost;
-    private volatile String realHost;
+    //Redirect host set with -m, used for domains that have no redirect of their own
+    private volatile String manualHost;
+    //Domain most recently given a redirect, only used for clients that send no SNI
+    private volatile String lastRedirectedHost;
+    //Redirects handed to each device by its DNS answers, so devices are tested independently
+    private Map<InetAddress, ClientState> clients;
+    //Drops devices that have gone idle, runs on the event loop
+    private TimerWheel.Timeout clientSweep = new TimerWheel.Timeout(this::sweepClients);
+    //Closes stale ready connections, runs on the event loop
+    private TimerWheel.Timeout poolSweep = new TimerWheel.Timeout(this::sweepPool);
     private boolean passthrough;
-    private Map<String, String> cachedAlternateHosts;
+    //Alternate hosts found on Censys, to pick another one when a redirect host fails
+    private AlternateHostStore alternateHostStore;
+    //Issuer CN of each domain redirected to a Censys host
+    private Map<String, String> redirectIssuers;
+    //Event loop that relays records for every session
+    private Selector selector;
+    //Work handed to the event loop by other threads, e.g. finished upstream connects
+    private Queue<Runnable> loopTasks;
+    //Sessions currently being relayed, only touched by the event loop
+    private Set<SSLSession> sessions;
+    //Where a record of each session is written, null if not wanted
+    private ResultLog resultLog;
+    //Connections to redirect hosts opened ahead of their sessions
+    private UpstreamPool upstreamPool;
 
-	public MITM(int verbose, PrintWriter outLog, boolean manual, boolean passthrough) {
+	public MITM(int verbose, AsyncLog log, boolean manual, boolean passthrough, int maxSessions) {
         this.verbose = verbose;
-        this.outLog = outLog;
+        this.log = log;
         this.manual = manual;
-        this.redirectHosts = (new HashMap<String, String>());
-        this.realIssuerCerts = (new HashMap<String, byte[]>());
-        this.realLeafCerts = (new HashMap<String, byte[]>());
-        this.cachedAlternateHosts = (new HashMap<>());
+        this.maxSessions = maxSessions;
+        //Written by the DNS thread and read by concurrent sessions
+        this.redirectHosts = (new ConcurrentHashMap<String, String>());
+        this.realChains = new CertIndex();
+        this.redirectIssuers = (new ConcurrentHashMap<>());
+        this.clients = new ConcurrentHashMap<InetAddress, ClientState>();
         this.passthrough = passthrough;
+        this.loopTasks = new ConcurrentLinkedQueue<Runnable>();
+        this.sessions = new HashSet<SSLSession>();
+        //Two ready connections per redirect host, kept for 15s, connects given up after 10s
+        this.upstreamPool = new UpstreamPool(serverPortNo, 2, 15000, 10000);
     }
 
     public void run() {
-        Thread sessionThread = null;
-        ServerSocket listener = null;
+        ServerSocketChannel listener = null;
+        //Upstream connects block on name resolution, so they run off the event loop.
+        //A session waits on at most one connect, so the queue never needs to be longer than maxSessions.
+        ThreadPoolExecutor connectPool = new ThreadPoolExecutor(connectThreads, connectThreads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(maxSessions));
+        connectPool.allowCoreThreadTimeOut(true);
         try {
             //Listen for connections
-            listener = new ServerSocket(clientPortNo);
-            listener.setSoTimeout(500);
-            if(verbose > 0) System.out.println("# Listening on TCP port 443");
+            selector = Selector.open();
+            //10ms ticks, 512 to a turn of the wheel
+            timers = new TimerWheel(10, 512, System.currentTimeMillis());
+            timers.schedule(clientSweep, CLIENT_SWEEP_MS);
+            timers.schedule(poolSweep, POOL_SWEEP_MS);
+            listener = ServerSocketChannel.open();
+            listener.bind(new InetSocketAddress(clientPortNo));
+            listener.configureBlocking(false);
+            listener.register(selector, SelectionKey.OP_ACCEPT);
+            log.println(1, "# Listening on TCP port " + clientPortNo);
 
             while(true) {
                 if(Thread.currentThread().isInterrupted()) throw new InterruptedException();
-                Socket connection;
-                try { connection = listener.accept();} catch (SocketTimeoutException e) {continue;}
-                connectionWaiting = false;
-                if(verbose > 0) System.out.println("# Connection with client made");
-                outLog.println("# Connection with client made");
-                if((forwardingHost == null || forwardingHost.isEmpty()) && !passthrough) {
-                    if(verbose > 0) System.out.println("WARNING: No redirect host set, dropping connection. Ensure DNS requests are directed to Spinner, or set redirect host manually with -m flag.");
-                    outLog.println("WARNING: No redirect host set, dropping connection. Ensure DNS requests are directed to Spinner, or set redirect host manually with -m flag.");
-                    connectionWaiting = true;
-                    continue;
+                //Sleep until a channel is ready or the next session deadline passes
+                selector.select(timers.untilNext(System.currentTimeMillis()));
+                //Expire deadlines first, so deadlines scheduled below count from now
+                timers.advance(System.currentTimeMillis());
+
+                Runnable task;
+                while((task = loopTasks.poll()) != null) task.run();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid()) continue;
+                    if(key.isAcceptable()) {
+                        accept(listener, connectPool);
+                    } else {
+                        ((SSLSession) key.attachment()).handle(key);
+                    }
                 }
-                //Spin off new thread & continue listening
-                sessionThread = new Thread(new SSLSession(connection, realHost, forwardingHost));
-                sessionThread.start();
-                sessionThread.join();
-                connectionWaiting = true;
+
             }
             //Deal with exceptions
         } catch(InterruptedException e) {
-            if(sessionThread != null) sessionThread.interrupt();
+            connectPool.shutdownNow();
         } catch (IOException e) {
-            System.out.println(e.getMessage());
-            outLog.println(e.getMessage());
+            log.println(0, e.getMessage());
         } finally {
+            for(SSLSession session : new ArrayList<SSLSession>(sessions)) session.close();
             try {
                 if(listener != null) listener.close();
+                if(selector != null) selector.close();
             } catch (IOException e2) {
-                System.out.println(e2.getMessage());
-                outLog.println(e2.getMessage());
+                log.println(0, e2.getMessage());
             }
-            connectionWaiting = true;
+            connectPool.shutdown();
+            upstreamPool.close();
+            if(timingHistory != null) timingHistory.save();
         }
     }
-    
-	public String getForwardingHost() {
-			return forwardingHost;
-	}
 
-	public void setForwardingHost(String forwardingHost) {
-		this.forwardingHost = forwardingHost;
-	}
     /**
-     * Returns whether the 
+     * Accepts a pending client connection and registers it with the event loop
      */
-    public boolean isConnectionWaiting() {
-        return connectionWaiting;
+    private void accept(ServerSocketChannel listener, ExecutorService connectPool) throws IOException {
+        SocketChannel connection = listener.accept();
+        if(connection == null) return;
+        log.println(1, "# Connection with client made");
+        if(sessions.size() >= maxSessions) {
+            InetAddress client = connection.socket().getInetAddress();
+            log.println(0, "WARNING: " + maxSessions + " sessions already active, dropping connection from "
+                    + (client != null ? client.getHostAddress() : "unknown client") + ". Raise --sessions to proxy more.");
+            Metrics.SESSIONS_REJECTED.inc();
+            //Recorded, so the dropped connection is not mistaken for something the app did
+            if(resultLog != null) {
+                SessionResult result = new SessionResult();
+                result.client = client != null ? client.getHostAddress() : null;
+                result.verdict = "rejected";
+                result.start = result.end = System.currentTimeMillis();
+                resultLog.write(result);
+            }
+            connection.close();
+            return;
+        }
+        connection.configureBlocking(false);
+        SSLSession session = new SSLSession(connection, connectPool);
+        session.clientKey = connection.register(selector, SelectionKey.OP_READ, session);
+        sessions.add(session);
+        Metrics.ACTIVE_SESSIONS.inc();
     }
 
-	public Map<String, String> getRedirectHosts() {
-		return redirectHosts;
-	}
+    /**
+     * Runs a task on the event loop thread and wakes the loop up to process it
+     */
+    private void runOnLoop(Runnable task) {
+        loopTasks.add(task);
+        Selector s = selector;
+        if(s != null) s.wakeup();
+    }
 
-	public void addRedirectHost(String from, String to) {
-		this.redirectHosts.put(from, to);
-	}
+    /**
+     * Sets the port to listen on and the port redirect hosts serve TLS on, must be called before run
+     */
+    public void setPorts(int clientPortNo, int serverPortNo) {
+        this.clientPortNo = clientPortNo;
+        this.serverPortNo = serverPortNo;
+        upstreamPool.setPort(serverPortNo);
+    }
 
-	public Map<String, byte[]> getRealLeafCerts() {
-		return realLeafCerts;
-	}
+    /**
+     * Sets the number of threads opening upstream connections, must be called before run
+     */
+    public void setConnectThreads(int connectThreads) {
+        this.connectThreads = Math.max(1, connectThreads);
+    }
 
-	public void addRealLeafCert(String host, byte[] leafCert) {
-		this.realLeafCerts.put(host, leafCert);
-	}
+    /**
+     * Sets the milliseconds each phase of a session may take before it ends with a timeout, must be called before run
+     * @param connect client connect until the upstream connection is made
+     * @param hello ClientHello forwarded until the ServerHello
+     * @param certificate server Certificate, or the encrypted TLS 1.3 flight, until the client responds
+     * @param appData client ChangeCipherSpec, or TLS 1.3 Finished, until application data
+     */
+    public void setTimeouts(long connect, long hello, long certificate, long appData) {
+        this.phaseTimeouts = new long[]{connect, hello, certificate, appData};
+    }
 
-	public Map<String, byte[]> getRealIssuerCerts() {
-		return realIssuerCerts;
-	}
+    /**
+     * Learns how long to wait for the client to answer each domain's certificate from the
+     * sessions that succeeded, in place of the fixed certificate timeout once enough have
+     */
+    public void setTimingHistory(TimingHistory timingHistory) {
+        this.timingHistory = timingHistory;
+    }
 
-	public void addRealIssuerCert(String host, byte[] issuerCert) {
-		this.realIssuerCerts.put(host, issuerCert);
+	public String getManualHost() {
+		return manualHost;
 	}
 
-	public String getRealHost() {
-		return realHost;
+	public void setManualHost(String manualHost) {
+		this.manualHost = manualHost;
 	}
 
-	public void setRealHost(String realHost) {
-		this.realHost = realHost;
+	public Map<String, String> getRedirectHosts() {
+		return redirectHosts;
 	}
 
-	public Map<String, String> getCachedAlternateHosts() {
-		return cachedAlternateHosts;
+	public void addRedirectHost(String from, String to) {
+		this.redirectHosts.put(from, to);
+		this.lastRedirectedHost = from;
+		//The client usually connects right after the DNS answer, have a connection ready
+		upstreamPool.warm(to);
 	}
 
-	public void addCachedAlternateHost(String urlRequested, String alternateHost) {
-		this.cachedAlternateHosts.put(urlRequested, alternateHost);
-	}
+    /**
+     * Gives a device the domain's current redirect host, once it has been sent a
+     * spoofed answer for the domain. The device keeps that host even if the
+     * domain is later moved to another one because a different device failed on it.
+     */
+    public void pinRedirectHost(InetAddress client, String host) {
+        String forwardHost = redirectHosts.get(host);
+        if(client == null || forwardHost == null) return;
+        //Updated inside compute, so a sweep cannot drop the state half way through
+        clients.compute(client, (c, state) -> {
+            if(state == null) state = new ClientState();
+            state.redirectHosts.putIfAbsent(host, forwardHost);
+            state.lastRedirectedHost = host;
+            state.lastSeen = System.currentTimeMillis();
+            return state;
+        });
+    }
 
-	/**
-     * Handles the SSLSession between a client and server, forwarding
-     * data between each and printing details to STDOUT.
+    /**
+     * Drops the redirects of devices that have not been seen for a while, and schedules the next sweep
      */
-    private class SSLSession implements Runnable {
+    private void sweepClients() {
+        long idleSince = System.currentTimeMillis() - CLIENT_IDLE_MS;
+        for(InetAddress client : clients.keySet()) {
+            clients.computeIfPresent(client, (c, state) -> state.lastSeen < idleSince ? null : state);
+        }
+        timers.schedule(clientSweep, CLIENT_SWEEP_MS);
+    }
 
-        Socket clientConnection;
-        Socket serverConnection;
-        //Map storing alert hex values to messages
-        Map<Integer, String> alertMap;
-        //Map storing handshake hex values to messages
-        Map<Integer, String> handShakeMap;
-        OutputStream clientOutStream;
-        InputStream clientInStream;
-        OutputStream serverOutStream;
-        InputStream serverInStream;
-        String forwardHost;
-        String realHost;
+    /**
+     * Closes ready upstream connections that have been idle too long, and schedules the next sweep
+     */
+    private void sweepPool() {
+        upstreamPool.sweep();
+        timers.schedule(poolSweep, POOL_SWEEP_MS);
+    }
 
-        public SSLSession(Socket clientConnection, String realHost, String host) {
-            this.clientConnection = clientConnection;
-            this.forwardHost = host;
-            this.realHost = realHost;
-            alertMap = new HashMap<Integer, String>();
-            handShakeMap = new HashMap<Integer, String>();
-            fillMaps();
-        }
+    /**
+     * @param client address of the device, may be null
+     * @param host the domain the client asked for, may be null
+     * @return the host its traffic should be sent to, or null if there is none
+     */
+    public String getForwardHost(InetAddress client, String host) {
+        if(host == null) return manualHost;
+        ClientState state = client != null ? clients.get(client) : null;
+        String forwardHost = state != null ? state.redirectHosts.get(host) : null;
+        //Devices whose DNS is relayed through another address fall back to the shared redirect
+        if(forwardHost == null) forwardHost = redirectHosts.get(host);
+        return forwardHost != null ? forwardHost : manualHost;
+    }
 
-        public void run() {
+    /**
+     * @return the domain most recently looked up by the device, for clients that send no SNI
+     */
+    public String getLastRedirectedHost(InetAddress client) {
+        ClientState state = client != null ? clients.get(client) : null;
+        return state != null ? state.lastRedirectedHost : lastRedirectedHost;
+    }
 
-            try {
-                //Get I/O streams for client 
-                clientOutStream = clientConnection.getOutputStream();
-                clientInStream = clientConnection.getInputStream();
-
-                if(verbose > 1) System.out.println("    STARTED HANDSHAKE");
-                outLog.println("    STARTED HANDSHAKE");
-                //Some flags
-                boolean clientAlert = false;
-                boolean serverAlert = false;
-                boolean handShake = false;
-                boolean failed = false;
-                boolean finished = false;
-                boolean serverCCS = false;
-                boolean clientCCS = false;
-                boolean timeout = false;
-                int messageCount = 0;
-                long timeoutExpiredMs = System.currentTimeMillis() + connectionTimeout;
-
-                while(true) {
-                    if(Thread.currentThread().isInterrupted()) { throw new InterruptedException(); }
-                    //Check if client has sent any data
-                    while(clientInStream.available() > 0) {
-
-                        if(!Thread.currentThread().isInterrupted()) {
-                            messageCount++;
-
-                            //Read in TLS record header
-                            byte[] header = new byte[5];
-                            clientInStream.read(header);
-
-                            //Decode record type
-                            switch(header[0]) {
-                                case 22:
-                                    if(clientCCS) {
-                                        if(verbose > 1) System.out.println("    " + messageCount + ". Encrypted client Handshake message");
-                                        outLog.println("    " + messageCount + ". Encrypted client Handshake message");
-                                    } else {
-                                        if(verbose > 1) System.out.print("    " + messageCount + ". Client Handshake message: ");
-                                        outLog.print("    " + messageCount + ". Client Handshake message: ");
-                                    }
-                                    handShake = true;
-                                    break;
-                                case 23:
-                                    if(verbose > 1) System.out.println("    " + messageCount + ". Sending application data to server");
-                                    outLog.println("    " + messageCount + ". Sending application data to server");
-                                    finished = true;
-                                    break;
-                                case 20:
-                                    if(verbose > 1) System.out.println("    " + messageCount + ". Client ChangeCipherSpec");
-                                    outLog.println("    " + messageCount + ". Client ChangeCipherSpec");
-                                    clientCCS = true;
-                                    break;
-                                case 21:
-                                    if(clientCCS) {
-                                        if(verbose > 1) System.out.println("    " + messageCount + ". Client sent an encrypted Alert message");
-                                        outLog.println("    " + messageCount + ". Client sent an encrypted Alert message");
-                                        failed = true;
-                                    } else {
-                                        if(verbose > 1) System.out.print("    " + messageCount + ". Client sent an Alert: ");
-                                        outLog.print("    " + messageCount + ". Client sent an Alert: ");
-                                        clientAlert = true;
-                                    }
-                                    break;
-                                default:
-                                    if(verbose > 1) System.out.println("    " + messageCount + ". Unknown message from client");
-                                    outLog.println("    " + messageCount + ". Unknown message from client");
-                            }
-
-                            //Caculate length of message excluding header
-                            int length = ((header[3] & 0xff) << 8) | (header[4] & 0xff);
-                            byte[] data = new byte[length];
-
-                            //Read in rest of TLS message
-                            for(int i=0; i<length; i++) {
-                                data[i]=(byte) (clientInStream.read() & 0xff);
-                            }
-
-                            //Deal with Alerts
-                            if(!clientCCS) {
-                                if(clientAlert && data[0] == 1) {
-                                    if(verbose > 1) System.out.print("Fatal ");
-                                    outLog.print("Fatal ");
-                                    if(verbose > 1) System.out.println(alertMap.get((int)data[1]));
-                                    outLog.println(alertMap.get((int)data[1]));
-                                    failed = true;
-                                } else if (clientAlert) {
-                                    if(verbose > 1) System.out.print("Warning ");
-                                    outLog.print("Warning ");
-                                    if(verbose > 1) System.out.println(alertMap.get((int)data[1]));
-                                    outLog.println(alertMap.get((int)data[1]));
-                                }
-                            }
-
-                            //Combine header with rest of message
-                            byte[] forwardMessage = new byte[5 + length];
-                            System.arraycopy(header, 0, forwardMessage, 0, header.length);
-                            System.arraycopy(data, 0, forwardMessage, header.length, data.length);
-
-                            //Print handshake message
-                            if(!clientCCS && handShake) {
-                                String messageString = handShakeMap.get((int)forwardMessage[5]);
-                                if(messageString == null) messageString = "UNKNOWN_MESSAGE_TYPE";
-
-                                //Log handshake type
-                                if(verbose > 1) System.out.println(messageString);
-                                outLog.println(messageString);
-                                
-                                if(messageString.equals("CLIENT_HELLO")) {
-                                	String sni = extractSNI(data);
-                                	if(sni != null) {
-										System.out.println("      > SNI: " + sni);
-										outLog.println("      > SNI: " + sni);
-                                		setForwardHost(redirectHosts.get(sni));
-                                		setRealHost(sni);
-                                	} else {
-										System.out.println("      > No SNI, using last DNS lookup");
-										outLog.println("      > No SNI, using last DNS lookup");
-                                	}
-                                	if(passthrough) this.forwardHost = sni;
-									System.out.println("      > Forwarding to: " + this.forwardHost);
-									outLog.println("      > Forwarding to: " + this.forwardHost);
-									this.serverConnection = new Socket();
-									try {
-										serverConnection.connect(new InetSocketAddress(this.forwardHost, 443), 10000);
-									} catch (Exception e) {
-										System.out.println("      > ERROR: Failed to connect to selected redirect host. Restart Spinner to try with different host.");
-										cachedAlternateHosts.remove(this.realHost);
-										return;
-										
-									}
-									serverOutStream = serverConnection.getOutputStream();
-									serverInStream = serverConnection.getInputStream();
-                                }
-                            }
-                            
-
-                            //Forward TLS message to server
-                            serverOutStream.write(forwardMessage);
-                            clientAlert = false;
-                            handShake = false;
-                        } else { 
-                            break;
-                        }
+	public CertIndex getRealChains() {
+		return realChains;
+	}
 
-                    }
+	/**
+	 * Stores the chain served by a domain, to compare with what its redirect host sends
+	 */
+	public void addRealChain(String host, Cert[] certs) {
+		this.realChains.put(host, certs);
+	}
 
-                    //Check if server has sent any data
-                    while(serverInStream != null && serverInStream.available() > 0) {
-
-                        if(!Thread.currentThread().isInterrupted()) {
-                            messageCount++;
-
-                            //Read in TLS record header
-                            byte[] header = new byte[5];
-                            serverInStream.read(header);
-
-                            //Decode record type
-                            switch(header[0]) {
-                                case 22:
-                                    if(serverCCS) {
-                                        if(verbose > 1) System.out.println("    " + messageCount + ". Encrypted server Handshake message");
-                                        outLog.println("    " + messageCount + ". Encrypted server Handshake message");
-                                    } else {
-                                        if(verbose > 1) System.out.print("    " + messageCount + ". Server Handshake message: ");
-                                        outLog.print("    " + messageCount + ". Server Handshake message: ");
-                                    }
-                                    handShake = true;
-                                    break;
-                                case 23:
-                                    if(verbose > 1) System.out.println("    " + messageCount + ". Sending application data to client");
-                                    outLog.println("    " + messageCount + ". Sending application data to client");
-                                    break;
-                                case 20:
-                                    if(verbose > 1) System.out.println("    " + messageCount + ". Server ChangeCipherSpec");
-                                    outLog.println("    " + messageCount + ". Server ChangeCipherSpec");
-                                    serverCCS = true;
-                                    break;
-                                case 21:
-                                    if(serverCCS) {
-                                        if(verbose > 1) System.out.println("    " + messageCount + ". Server sent an encrypted Alert message");
-                                        outLog.print("    " + messageCount + ". Server sent an encrypted Alert message");
-                                    } else {
-                                        if(verbose > 1) System.out.print("    " + messageCount + ". Server sent an Alert: ");
-                                        outLog.print("    " + messageCount + ". Server sent an Alert: ");
-                                    }
-                                    serverAlert = true;
-                                    break;
-                                default:
-                                    if(verbose > 1) System.out.println("    " + messageCount + ". Unknown message from client");
-                                    outLog.println("    " + messageCount + ". Unknown message from client");
-                            }
-
-                            //Caculate length of message excluding header
-                            int length = ((header[3] & 0xff) << 8) | (header[4] & 0xff);
-                            byte[] data = new byte[length];
-
-                            //Read in rest of TLS message
-                            for(int i=0; i<length; i++) {
-                                data[i]=(byte) (serverInStream.read() & 0xff);
-                            }
-
-                            //Deal with Alerts
-                            if(!serverCCS) {
-                                if(serverAlert && data[0] == 2) {
-                                    if(verbose > 0) System.out.print("Fatal ");
-                                    outLog.print("Fatal ");
-                                    if(verbose > 0) System.out.println(alertMap.get((int)data[1]));
-                                    outLog.println(alertMap.get((int)data[1]));
-                                    failed = true;
-                                } else if (serverAlert) {
-                                    if(verbose > 0) System.out.print("Warning ");
-                                    outLog.print("Warning ");
-                                    if(verbose > 0) System.out.println(alertMap.get((int)data[1]));
-                                    outLog.println(alertMap.get((int)data[1]));
-                                }
-                            }
-
-                            //Combine header with rest of message
-                            byte[] forwardMessage = new byte[5 + length];
-                            System.arraycopy(header, 0, forwardMessage, 0, header.length);
-                            System.arraycopy(data, 0, forwardMessage, header.length, data.length);
-
-                            //Print handshake message
-                            if(!serverCCS && handShake) {
-                                String messageString = handShakeMap.get((int)forwardMessage[5]);
-                                if(messageString == null) messageString = "UNKNOWN_MESSAGE_TYPE";
-
-                                //Log handshake type
-                                if(verbose > 1) System.out.println(messageString);
-                                outLog.println(messageString);
-
-                                //Check same certificate is not being served, despite being sent to different address
-                                
-                                if(messageString.equals("CERTIFICATE")){
-                                	int index = 12;
-                                    int leafCertLength = ((forwardMessage[index++] & 0xff) << 16) | ((forwardMessage[index++] & 0xff) << 8) | (forwardMessage[index++] & 0xff);
-                                    if(leafCertLength == getRealLeafCerts().get(this.realHost).length) {
-                                        //Check if message is server certificate
-                                        for(int i=0; i<leafCertLength; i++) {
-                                            if(forwardMessage[i+index] != getRealLeafCerts().get(this.realHost)[i]) break;
-                                            if(i+1 == leafCertLength) {
-                                                if(verbose > 1) System.out.println("CERT WARNING: Same certificate as legitimate domain detected, possible SNI in use by hosting providers");
-                                                outLog.println("CERT WARNING: Same certificate as legitimate domain detected, possible SNI in use by hosting providers");
-                                            }
-                                        }
-                                    }
-									index += leafCertLength;
-                                    if(forwardMessage.length > index) {
-										int issuerCertLength = ((forwardMessage[index++] & 0xff) << 16) | ((forwardMessage[index++] & 0xff) << 8) | (forwardMessage[index++] & 0xff);
-										if(issuerCertLength != getRealIssuerCerts().get(this.realHost).length) {
-											//Check if message is server certificate
-											for(int i=0; i<issuerCertLength; i++) {
-												if(forwardMessage[i+index] != getRealIssuerCerts().get(this.realHost)[i]) {
-													if(verbose > 1) System.out.println("CERT WARNING: Chosen redirect domain has different issuer cert.");
-													outLog.println("CERT WARNING: Chosen redirect domain has different issuer cert.");
-													break;
-												}
-											}
-										} 
-                                    }
-                                }
-                            }
-                            clientOutStream.write(forwardMessage);
-                            serverAlert = false;
-                            handShake = false;
-                        } else { 
-                            break;
-                        }
-                    }
+	public void setAlternateHostStore(AlternateHostStore alternateHostStore) {
+		this.alternateHostStore = alternateHostStore;
+	}
 
-                    if (System.currentTimeMillis() >= timeoutExpiredMs) {
-                        timeout = true;
-                        break;
-                    }
+	public void setResultLog(ResultLog resultLog) {
+		this.resultLog = resultLog;
+	}
 
-                    //Stop listening if handshake failure or application data seen
-                   if(finished || failed) break;
-                    if(failed) break;
-                }
+	/**
+	 * Redirects a domain to a host found on Censys for the domain's issuer
+	 */
+	public void addRedirectHost(String from, String to, String issuerCN) {
+		this.redirectIssuers.put(from, issuerCN);
+		addRedirectHost(from, to);
+	}
 
-                if(finished) {System.out.println("HANDSHAKE SUCCEEDED - likely app does not check" 
-                        + " hostname of pinned certificate");
-                outLog.println("HANDSHAKE SUCCEEDED - likely app does not check" 
-                        + " hostname of pinned certificate");}
-                if(failed) {System.out.println("HANDSHAKE FAILED - app does not accept alternate certificate from " + this.forwardHost);
-                    outLog.println("HANDSHAKE FAILED - app does not accept alternate certificate " + this.forwardHost);}
-                if(timeout) {System.out.println("HANDSHAKE TIMEOUT - likely app does not accept certificate from " + this.forwardHost);
-                    outLog.println("HANDSHAKE TIMEOUT - likely app does not accept certificate from " + this.forwardHost);}
-
-
-            } catch (InterruptedException | IOException e) {
-                if(e instanceof IOException) {
-                    System.out.println(e.getMessage());
-                    e.printStackTrace();
-                    outLog.println(e.getMessage());
-                }
-            } finally {
-                try {
-                    //Close all I/O streams and cut connection
-                    clientInStream.close();
-                    clientOutStream.close();
-                    serverInStream.close();
-                    serverOutStream.close();
-                    clientConnection.close();
-                    serverConnection.close();
-                } catch (Exception e) {
-                    outLog.println("Failed to close sockets");
-                }
-            }
+    /**
+     * Drops a redirect host that could not be connected to and moves the
+     * domain on to the next Censys candidate for its issuer, without a new lookup.
+     * Other devices keep their redirect for the domain unless it was the failed host.
+     *
+     * @return the new redirect host, or null if there is no other candidate
+     */
+    public String replaceRedirectHost(InetAddress client, String host, String failedHost) {
+        String issuerCN = host != null ? redirectIssuers.get(host) : null;
+        if(issuerCN == null || alternateHostStore == null) return null;
+        alternateHostStore.reject(issuerCN, failedHost);
+        String next = alternateHostStore.next(issuerCN, host);
+        ClientState state = client != null ? clients.get(client) : null;
+        if(next == null) {
+            redirectHosts.remove(host, failedHost);
+            if(state != null) state.redirectHosts.remove(host);
+            return null;
         }
+        redirectHosts.replace(host, failedHost, next);
+        if(state != null) state.redirectHosts.put(host, next);
+        upstreamPool.warm(next);
+        return next;
+    }
 
-        public void setForwardHost(String forwardHost) {
-			this.forwardHost = forwardHost;
-		}
-        
-        public void setRealHost(String realHost) {
-			this.realHost = realHost;
-		}
-
-		private String extractSNI(byte[] data) {
+    /**
+     * @param data bytes holding a ClientHello handshake message
+     * @param offset start of the message, at its type byte
+     * @param length length of the record holding the message
+     * @return the server name requested by the client, or null if there is none
+     */
+	static String extractSNI(byte[] data, int offset, int length) {
         	
         	try {
         		// 1 byte message type
         	// 3 bytes length
         	// 2 bytes version
         	// 32 random value
-        	int index = 38;
+        	int index = offset + 38;
         	// 1 byte len val to skip
         	int skipLen = data[index++] & 0xff;
         	index+=skipLen;
@@ -513,7 +394,7 @@ public class MITM implements Runnable {
         	index+=skipLen;
         	// extenssions length
         	int extLen = ((data[index++] & 0xff) << 8) | (data[index++] & 0xff);
-        	while(index < data.length) {
+        	while(index < offset + length) {
        	    	if(data[index++] == 0 && data[index++] == 0) {
        	    		//Extract SNI
 					int totalSNILen = ((data[index++] & 0xff) << 8) | (data[index++] & 0xff);
@@ -534,6 +415,641 @@ public class MITM implements Runnable {
         	}
 		}
 
+    /**
+     * Redirect state of one device, keyed by its address
+     */
+    private static class ClientState {
+        //Redirect host by domain, as given in the device's DNS answers
+        final Map<String, String> redirectHosts = new ConcurrentHashMap<String, String>();
+        volatile String lastRedirectedHost;
+        //Last DNS answer or session from the device
+        volatile long lastSeen;
+    }
+
+    /**
+     * @param offset start of a ServerHello, at its type byte
+     * @param length length of the message including its header
+     * @return the version the server picked, from its supported_versions extension if it sent one
+     */
+    static int negotiatedVersion(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int index = offset + HandshakeParser.HEADER_LENGTH;
+        if(index + 2 > end) return 0;
+        int version = ((data[index] & 0xff) << 8) | (data[index + 1] & 0xff);
+        //Skip version and random, then the session id
+        index += 2 + 32;
+        if(index >= end) return version;
+        index += 1 + (data[index] & 0xff);
+        //Skip cipher suite and compression method
+        index += 3;
+        if(index + 2 > end) return version;
+        int extensionsEnd = Math.min(end, index + 2 + (((data[index] & 0xff) << 8) | (data[index + 1] & 0xff)));
+        index += 2;
+        while(index + 4 <= extensionsEnd) {
+            int type = ((data[index] & 0xff) << 8) | (data[index + 1] & 0xff);
+            int extensionLength = ((data[index + 2] & 0xff) << 8) | (data[index + 3] & 0xff);
+            index += 4;
+            //supported_versions
+            if(type == 43 && extensionLength == 2 && index + 2 <= extensionsEnd) {
+                return ((data[index] & 0xff) << 8) | (data[index + 1] & 0xff);
+            }
+            index += extensionLength;
+        }
+        return version;
+    }
+
+    static String versionName(int version) {
+        switch(version) {
+            case 0x0301: return "TLS 1.0";
+            case 0x0302: return "TLS 1.1";
+            case 0x0303: return "TLS 1.2";
+            case TLS13: return "TLS 1.3";
+            default: return null;
+        }
+    }
+
+	/**
+     * Handles the SSLSession between a client and server, forwarding
+     * data between each and printing details to STDOUT.
+     * All methods run on the event loop thread.
+     */
+    private class SSLSession {
+
+        SocketChannel clientConnection;
+        SocketChannel serverConnection;
+        //Device the session comes from, its redirects are kept apart from other devices'
+        InetAddress clientAddress;
+        SelectionKey clientKey;
+        SelectionKey serverKey;
+        //Records read from each side, forwarded from the same buffer
+        RecordBuffer clientIn;
+        RecordBuffer serverIn;
+        ExecutorService connectPool;
+        //Map storing alert hex values to messages
+        Map<Integer, String> alertMap;
+        //Map storing handshake hex values to messages
+        Map<Integer, String> handShakeMap;
+        String forwardHost;
+        String realHost;
+        //Some flags
+        boolean clientAlert = false;
+        boolean serverAlert = false;
+        boolean failed = false;
+        boolean finished = false;
+        boolean serverCCS = false;
+        boolean clientCCS = false;
+        boolean timeout = false;
+        boolean connecting = false;
+        //Set if a side closed or reset its connection before a verdict
+        boolean clientClosed = false;
+        boolean serverClosed = false;
+        boolean closed = false;
+        //Negotiated in the ServerHello
+        boolean tls13 = false;
+        //Set once the TLS 1.3 client has sent its encrypted Finished
+        boolean clientFinished = false;
+        //Handshake messages of each side, which may be packed together or split over records
+        HandshakeParser clientHandshake = new HandshakeParser();
+        HandshakeParser serverHandshake = new HandshakeParser();
+        HandshakeParser.Listener clientMessages = this::clientMessage;
+        HandshakeParser.Listener serverMessages = this::serverMessage;
+        int messageCount = 0;
+        int connectAttempts = 0;
+        //Deadline of the current phase
+        int phase;
+        //When the client was handed the server's certificate flight
+        long responseStarted;
+        //Time the client took to answer it with its ChangeCipherSpec or Finished, -1 until it has
+        long responseMs = -1;
+        TimerWheel.Timeout deadline = new TimerWheel.Timeout(this::expire);
+        SessionResult result = new SessionResult();
+
+        public SSLSession(SocketChannel clientConnection, ExecutorService connectPool) {
+            this.clientConnection = clientConnection;
+            this.connectPool = connectPool;
+            this.clientAddress = clientConnection.socket().getInetAddress();
+            result.client = clientAddress != null ? clientAddress.getHostAddress() : null;
+            ClientState state = clientAddress != null ? clients.get(clientAddress) : null;
+            if(state != null) state.lastSeen = System.currentTimeMillis();
+            clientIn = RecordBuffer.acquire();
+            serverIn = RecordBuffer.acquire();
+            alertMap = new HashMap<Integer, String>();
+            handShakeMap = new HashMap<Integer, String>();
+            fillMaps();
+            result.start = System.currentTimeMillis();
+            startPhase(CONNECT);
+            log.println(2, "    STARTED HANDSHAKE");
+        }
+
+        /**
+         * Called by the event loop when one of the session's channels is ready
+         */
+        public void handle(SelectionKey key) {
+            try {
+                if(key.isWritable()) {
+                    if(key == clientKey) forwardToClient();
+                    else forwardToServer();
+                }
+                if(!closed && key.isReadable()) {
+                    if(key == clientKey) readClient();
+                    else readServer();
+                }
+                //Stop listening if handshake failure or application data seen
+                if(finished || failed) end();
+            } catch (Exception e) {
+                //A broken session must never take down the event loop
+                log.println(0, "Session error: " + e);
+                log.println(AsyncLog.FILE_ONLY, AsyncLog.stackTrace(e));
+                close();
+            }
+        }
+
+        private void readClient() throws IOException {
+            boolean eof;
+            try {
+                eof = clientIn.read(clientConnection) < 0;
+            } catch (IOException e) {
+                //Reset by the client
+                eof = true;
+            }
+            if(!processRecords(clientIn, true)) return;
+            if(eof) {
+                peerClosed(true);
+                return;
+            }
+            //Records are held back until the upstream connect completes
+            if(serverConnection != null) forwardToServer();
+            else if(clientIn.isFull()) clientKey.interestOps(clientKey.interestOps() & ~SelectionKey.OP_READ);
+        }
+
+        private void readServer() throws IOException {
+            boolean eof;
+            try {
+                eof = serverIn.read(serverConnection) < 0;
+            } catch (IOException e) {
+                //Reset by the server
+                eof = true;
+            }
+            if(!processRecords(serverIn, false)) return;
+            if(eof) {
+                peerClosed(false);
+                return;
+            }
+            forwardToClient();
+        }
+
+        /**
+         * Ends the session once a side has closed or reset its connection.
+         * Records it sent before closing have been processed, so a verdict
+         * they gave stands, otherwise there is nothing left to wait for.
+         */
+        private void peerClosed(boolean client) {
+            if(!finished && !failed) {
+                if(client) clientClosed = true;
+                else serverClosed = true;
+            }
+            end();
+        }
+
+        /**
+         * Processes every complete TLS record in the buffer
+         * @return false if the session was closed while processing
+         */
+        private boolean processRecords(RecordBuffer in, boolean fromClient) throws IOException {
+            while(!closed && !finished && !failed && in.nextRecord()) {
+                if(fromClient) {
+                    result.bytesToServer += RecordBuffer.HEADER_LENGTH + in.recordLength();
+                    Metrics.BYTES_TO_SERVER.add(RecordBuffer.HEADER_LENGTH + in.recordLength());
+                    processClientRecord(in.array(), in.recordOffset(), in.recordLength());
+                } else {
+                    result.bytesToClient += RecordBuffer.HEADER_LENGTH + in.recordLength();
+                    Metrics.BYTES_TO_CLIENT.add(RecordBuffer.HEADER_LENGTH + in.recordLength());
+                    processServerRecord(in.array(), in.recordOffset(), in.recordLength());
+                }
+            }
+            if(closed) return false;
+            if(in.oversized()) {
+                log.println(2, "    Oversized record, not TLS traffic");
+                close();
+                return false;
+            }
+            return true;
+        }
+
+        private void forwardToServer() {
+            try {
+                forward(clientIn, serverConnection, serverKey, clientKey);
+            } catch (IOException e) {
+                peerClosed(false);
+            }
+        }
+
+        private void forwardToClient() {
+            try {
+                forward(serverIn, clientConnection, clientKey, serverKey);
+            } catch (IOException e) {
+                peerClosed(true);
+            }
+        }
+
+        /**
+         * Writes processed records to the other side. If the other side cannot
+         * take them all, stop reading until it asks for a write wakeup.
+         */
+        private void forward(RecordBuffer in, SocketChannel out, SelectionKey outKey, SelectionKey inKey) throws IOException {
+            if(in.forward(out)) {
+                outKey.interestOps(outKey.interestOps() & ~SelectionKey.OP_WRITE);
+                inKey.interestOps(inKey.interestOps() | SelectionKey.OP_READ);
+            } else {
+                outKey.interestOps(outKey.interestOps() | SelectionKey.OP_WRITE);
+                inKey.interestOps(inKey.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        private void processClientRecord(byte[] data, int offset, int length) throws IOException {
+            messageCount++;
+
+            //Decode record type
+            switch(data[offset]) {
+                case 22:
+                    if(clientEncrypted()) {
+                        log.println(2, messageCount, "Encrypted client Handshake message");
+                    } else {
+                        clientHandshake.feed(data, offset + RecordBuffer.HEADER_LENGTH, length, clientMessages);
+                    }
+                    break;
+                case 23:
+                    //TLS 1.3 encrypts the rest of the handshake, the client's first encrypted record ends it
+                    if(tls13 && !clientFinished) {
+                        if(length < MIN_TLS13_FINISHED) {
+                            log.println(2, messageCount, "Client sent an encrypted Alert message");
+                            failed = true;
+                        } else {
+                            log.println(2, messageCount, "Encrypted client Finished");
+                            clientFinished = true;
+                            startPhase(APP_DATA);
+                        }
+                        break;
+                    }
+                    log.println(2, messageCount, "Sending application data to server");
+                    if(result.firstAppData == null) result.firstAppData = System.currentTimeMillis();
+                    //Only sessions that succeed are learned from, so rejections never shape the timeout
+                    if(timingHistory != null && responseMs >= 0) timingHistory.record(this.realHost, responseMs);
+                    finished = true;
+                    break;
+                case 20:
+                    log.println(2, messageCount, "Client ChangeCipherSpec");
+                    if(result.clientCCS == null) result.clientCCS = System.currentTimeMillis();
+                    clientCCS = true;
+                    clientHandshake.reset();
+                    //TLS 1.3 clients send it before their Finished, only for middlebox compatibility
+                    if(!tls13) startPhase(APP_DATA);
+                    break;
+                case 21:
+                    if(clientEncrypted()) {
+                        log.println(2, messageCount, "Client sent an encrypted Alert message");
+                        failed = true;
+                    } else {
+                        log.print(2, messageCount, "Client sent an Alert: ");
+                        clientAlert = true;
+                    }
+                    break;
+                default:
+                    log.println(2, messageCount, "Unknown message from client");
+            }
+
+            //Deal with Alerts
+            if(clientAlert) {
+                result.clientAlerts.add(data[offset + 6] & 0xff);
+                if(data[offset + 5] == 2) {
+                    log.print(2, "Fatal ");
+                    log.println(2, alertMap.get((int)data[offset + 6]));
+                    failed = true;
+                } else {
+                    log.print(2, "Warning ");
+                    log.println(2, alertMap.get((int)data[offset + 6]));
+                }
+            }
+            clientAlert = false;
+        }
+
+        /**
+         * Called for each plaintext handshake message from the client
+         */
+        private void clientMessage(int type, byte[] data, int offset, int length) {
+            if(closed) return;
+            String messageString = handShakeMap.get(type);
+            if(messageString == null) messageString = "UNKNOWN_MESSAGE_TYPE";
+            log.println(2, messageCount, "Client Handshake message: " + messageString);
+
+            if(type == CLIENT_HELLO && serverConnection == null && !connecting) {
+                result.clientHello = System.currentTimeMillis();
+                String sni = extractSNI(data, offset, length);
+                result.sni = sni;
+                if(sni != null) {
+                    log.println(0, "      > SNI: " + sni);
+                    setRealHost(sni);
+                } else {
+                    log.println(0, "      > No SNI, using last DNS lookup");
+                    setRealHost(getLastRedirectedHost(clientAddress));
+                }
+                if(passthrough) setForwardHost(sni);
+                else setForwardHost(getForwardHost(clientAddress, this.realHost));
+                if(this.forwardHost == null || this.forwardHost.isEmpty()) {
+                    log.println(1, "WARNING: No redirect host set, dropping connection. Ensure DNS requests are directed to Spinner, or set redirect host manually with -m flag.");
+                    close();
+                    return;
+                }
+                log.println(0, "      > Forwarding to: " + this.forwardHost);
+                connectUpstream();
+            }
+        }
+
+        private void processServerRecord(byte[] data, int offset, int length) throws IOException {
+            messageCount++;
+
+            //Decode record type
+            switch(data[offset]) {
+                case 22:
+                    if(serverEncrypted()) {
+                        log.println(2, messageCount, "Encrypted server Handshake message");
+                    } else {
+                        serverHandshake.feed(data, offset + RecordBuffer.HEADER_LENGTH, length, serverMessages);
+                    }
+                    break;
+                case 23:
+                    if(tls13 && !clientFinished) {
+                        log.println(2, messageCount, "Encrypted server Handshake message");
+                    } else {
+                        log.println(2, messageCount, "Sending application data to client");
+                    }
+                    break;
+                case 20:
+                    log.println(2, messageCount, "Server ChangeCipherSpec");
+                    if(result.serverCCS == null) result.serverCCS = System.currentTimeMillis();
+                    serverCCS = true;
+                    serverHandshake.reset();
+                    //A resumed session sends no Certificate, the client answers the server's Finished instead
+                    if(!tls13 && phase == HELLO) startPhase(CERTIFICATE_RESPONSE);
+                    break;
+                case 21:
+                    if(serverEncrypted()) {
+                        log.println(2, messageCount, "Server sent an encrypted Alert message");
+                    } else {
+                        log.print(2, messageCount, "Server sent an Alert: ");
+                        serverAlert = true;
+                    }
+                    break;
+                default:
+                    log.println(2, messageCount, "Unknown message from client");
+            }
+
+            //Deal with Alerts
+            if(serverAlert) {
+                result.serverAlerts.add(data[offset + 6] & 0xff);
+                if(data[offset + 5] == 2) {
+                    log.print(1, "Fatal ");
+                    log.println(1, alertMap.get((int)data[offset + 6]));
+                    failed = true;
+                } else {
+                    log.print(1, "Warning ");
+                    log.println(1, alertMap.get((int)data[offset + 6]));
+                }
+            }
+            serverAlert = false;
+        }
+
+        /**
+         * Called for each plaintext handshake message from the server
+         */
+        private void serverMessage(int type, byte[] data, int offset, int length) {
+            if(closed) return;
+            String messageString = handShakeMap.get(type);
+            if(messageString == null) messageString = "UNKNOWN_MESSAGE_TYPE";
+            log.println(2, messageCount, "Server Handshake message: " + messageString);
+
+            if(type == SERVER_HELLO) {
+                if(result.serverHello == null) result.serverHello = System.currentTimeMillis();
+                int version = negotiatedVersion(data, offset, length);
+                result.version = versionName(version);
+                if(version == TLS13 && !tls13) {
+                    tls13 = true;
+                    log.println(2, "      > TLS 1.3, the certificate is encrypted and cannot be checked");
+                    //The rest of the server's flight is encrypted, the client answers it as a whole
+                    startPhase(CERTIFICATE_RESPONSE);
+                }
+            }
+
+            //Check same certificate is not being served, despite being sent to different address
+            if(type == CERTIFICATE) {
+                checkCertificates(data, offset + HandshakeParser.HEADER_LENGTH, length - HandshakeParser.HEADER_LENGTH);
+                startPhase(CERTIFICATE_RESPONSE);
+            }
+        }
+
+        /**
+         * TLS 1.3 sends ChangeCipherSpec only for middlebox compatibility,
+         * its encrypted records all have the application data type
+         */
+        private boolean clientEncrypted() {
+            return clientCCS && !tls13;
+        }
+
+        private boolean serverEncrypted() {
+            return serverCCS && !tls13;
+        }
+
+        /**
+         * Hashes each certificate the redirect host sent and looks it up in the real domain's chain
+         *
+         * @param offset start of the Certificate message body
+         * @param length length of the body
+         */
+        private void checkCertificates(byte[] data, int offset, int length) {
+            if(!realChains.contains(this.realHost)) return;
+            int end = offset + length;
+            //Skip the certificate list length
+            int index = offset + 3;
+            for(int position = 0; index + 3 <= end; position++) {
+                int certLength = ((data[index] & 0xff) << 16) | ((data[index + 1] & 0xff) << 8) | (data[index + 2] & 0xff);
+                index += 3;
+                if(index + certLength > end) break;
+                int level = realChains.level(this.realHost, Utils.getSha256(data, index, certLength));
+                result.chainMatches.add(level);
+                if(level != CertIndex.NO_MATCH) {
+                    log.println(2, "      > Certificate " + position + " is the " + realChains.levelName(this.realHost, level) + " of " + this.realHost + "'s chain");
+                }
+                if(position == 0 && level == 0) {
+                    log.println(2, "CERT WARNING: Same certificate as legitimate domain detected, possible SNI in use by hosting providers");
+                }
+                if(position == 1 && level != 1) {
+                    log.println(2, "CERT WARNING: Chosen redirect domain has different issuer cert.");
+                }
+                index += certLength;
+            }
+        }
+
+        /**
+         * Opens the upstream connection on the connect pool and registers it
+         * with the event loop once established
+         */
+        private void connectUpstream() {
+            connecting = true;
+            connectAttempts++;
+            final String host = this.forwardHost;
+            SocketChannel ready = upstreamPool.take(host);
+            if(ready != null) {
+                Metrics.UPSTREAM_POOL_HITS.inc();
+                //Replace it only while some domain is still sent to the host
+                if(redirectHosts.containsValue(host) || host.equals(manualHost)) upstreamPool.warm(host);
+                upstreamConnected(ready);
+                return;
+            }
+            try {
+                connectPool.execute(new Runnable() {
+                    public void run() {
+                        SocketChannel channel = null;
+                        long started = System.nanoTime();
+                        try {
+                            channel = upstreamPool.connect(host);
+                            Metrics.UPSTREAM_CONNECT_SECONDS.observeSince(started);
+                        } catch (Exception e) {
+                            try { if(channel != null) channel.close(); } catch (IOException e2) {}
+                            channel = null;
+                        }
+                        final SocketChannel connected = channel;
+                        runOnLoop(new Runnable() {
+                            public void run() { upstreamConnected(connected); }
+                        });
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                upstreamConnected(null);
+            }
+        }
+
+        private void upstreamConnected(SocketChannel channel) {
+            connecting = false;
+            if(closed) {
+                try { if(channel != null) channel.close(); } catch (IOException e) {}
+                return;
+            }
+            if(channel == null) {
+                String nextHost = passthrough || connectAttempts >= 3 ? null : replaceRedirectHost(clientAddress, this.realHost, this.forwardHost);
+                if(nextHost != null) {
+                    log.println(0, "      > ERROR: Failed to connect to " + this.forwardHost + ", trying next alternate host: " + nextHost);
+                    setForwardHost(nextHost);
+                    connectUpstream();
+                    return;
+                }
+                log.println(0, "      > ERROR: Failed to connect to selected redirect host " + this.forwardHost + ".");
+                close();
+                return;
+            }
+            try {
+                serverConnection = channel;
+                serverKey = channel.register(selector, SelectionKey.OP_READ, this);
+                startPhase(HELLO);
+                forwardToServer();
+            } catch (IOException e) {
+                log.println(0, e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Gives the session the phase's budget from now, replacing the previous deadline
+         */
+        private void startPhase(int phase) {
+            this.phase = phase;
+            long budget = phaseTimeouts[phase];
+            //The learned timeout bounds the certificate response phase, so that is what is measured
+            if(phase == APP_DATA && responseStarted > 0) responseMs = System.currentTimeMillis() - responseStarted;
+            if(phase == CERTIFICATE_RESPONSE) {
+                responseStarted = System.currentTimeMillis();
+                long learned = timingHistory != null ? timingHistory.timeout(this.realHost) : -1;
+                if(learned > 0) {
+                    log.println(2, "      > Waiting " + learned + "ms for the client, learned from "
+                            + timingHistory.samples(this.realHost) + " earlier sessions");
+                    budget = learned;
+                }
+                result.responseTimeout = budget;
+            }
+            timers.schedule(deadline, budget);
+        }
+
+        /**
+         * Called by the timer wheel once the current phase's deadline has passed
+         */
+        private void expire() {
+            timeout = true;
+            result.timeoutPhase = PHASE_NAMES[phase];
+            end();
+        }
+
+        /**
+         * Prints the verdict for the session and cuts both connections
+         */
+        private void end() {
+            if(closed) return;
+            if(finished) log.println(0, "HANDSHAKE SUCCEEDED - likely app does not check"
+                    + " hostname of pinned certificate");
+            if(failed) log.println(0, "HANDSHAKE FAILED - app does not accept alternate certificate from " + this.forwardHost);
+            if(timeout) log.println(0, "HANDSHAKE TIMEOUT waiting for " + PHASE_NAMES[phase] + " - likely app does not accept certificate from " + this.forwardHost);
+            if(clientClosed) log.println(0, "HANDSHAKE CLIENT_CLOSED - app closed the connection, likely does not accept certificate from " + this.forwardHost);
+            if(serverClosed) log.println(0, "HANDSHAKE SERVER_CLOSED - " + this.forwardHost + " closed the connection before a verdict");
+            close();
+        }
+
+        public void close() {
+            if(closed) return;
+            closed = true;
+            sessions.remove(this);
+            timers.cancel(deadline);
+            result.end = System.currentTimeMillis();
+            result.verdict = verdict();
+            Metrics.ACTIVE_SESSIONS.dec();
+            Metrics.SESSION_SECONDS.observeMillis(result.end - result.start);
+            Metrics.sessions(result.verdict).inc();
+            if(resultLog != null) writeResult();
+            clientIn.release();
+            serverIn.release();
+            try {
+                //Cut both connections, deregistering them from the event loop
+                clientConnection.close();
+                if(serverConnection != null) serverConnection.close();
+            } catch (Exception e) {
+                log.println(AsyncLog.FILE_ONLY, "Failed to close sockets");
+            }
+        }
+
+        /**
+         * @return succeeded, failed, client_closed, server_closed, timeout, or error for a session closed before a verdict
+         */
+        private String verdict() {
+            if(finished) return "succeeded";
+            if(failed) return "failed";
+            if(clientClosed) return "client_closed";
+            if(serverClosed) return "server_closed";
+            if(timeout) return "timeout";
+            return "error";
+        }
+
+        private void writeResult() {
+            result.realHost = this.realHost;
+            result.redirectHost = this.forwardHost;
+            result.messageCount = messageCount;
+            resultLog.write(result);
+        }
+
+        public void setForwardHost(String forwardHost) {
+			this.forwardHost = forwardHost;
+		}
+        
+        public void setRealHost(String realHost) {
+			this.realHost = realHost;
+		}
+
 		//Fill the maps with alert and handshake messages specified in RFC5246
         private void fillMaps() {
 
@@ -0,0 +1,302 @@
+/**
+ * Counters and latency histograms for the DNS server, certificate and
+ * Censys lookups and the MITM sessions. Updates are cheap enough for
+ * the hot paths. The values can be scraped in Prometheus text format
+ * from a local HTTP endpoint and are written to the log on shutdown.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class Metrics {
+
+    //Histogram bucket bounds in seconds, from a cached DNS answer to a slow Censys page
+    private static final double[] BUCKETS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+    private static final List<Metric> metrics = new CopyOnWriteArrayList<Metric>();
+    //Counts its own hits and misses, read when the metrics are formatted
+    private static volatile DNSCache dnsCache;
+
+    public static final Counter DNS_QUERIES = counter("spinner_dns_queries_total", "DNS queries received");
+    private static final Reading DNS_CACHE_HITS = reading("spinner_dns_cache_hits_total", "counter", "DNS queries answered from the cache",
+            () -> dnsCache != null ? dnsCache.getHits() : 0);
+    private static final Reading DNS_CACHE_MISSES = reading("spinner_dns_cache_misses_total", "counter", "DNS cache lookups that found no live answer",
+            () -> dnsCache != null ? dnsCache.getMisses() : 0);
+    public static final Counter DNS_FORWARDED = counter("spinner_dns_forwarded_total", "DNS queries for allow-listed domains sent to the real DNS server");
+    public static final Counter DNS_SPOOFED = counter("spinner_dns_spoofed_total", "DNS queries answered with the spoof address");
+    public static final Counter DNS_DROPPED = counter("spinner_dns_dropped_total", "DNS queries dropped unanswered as unparseable or with the worker pools full");
+    public static final Histogram DNS_FORWARD_SECONDS = histogram("spinner_dns_forward_seconds", "Time for the real DNS server to answer a forwarded query");
+    public static final Counter DNS_FORWARD_ERRORS = counter("spinner_dns_forward_errors_total", "Forwarded DNS queries the real DNS server did not answer");
+
+    public static final Histogram CERT_FETCH_SECONDS = histogram("spinner_cert_fetch_seconds", "Time to fetch a certificate chain from a domain");
+    public static final Counter CERT_FETCH_ERRORS = counter("spinner_cert_fetch_errors_total", "Certificate chain fetches that failed");
+    public static final Histogram CENSYS_LOOKUP_SECONDS = histogram("spinner_censys_lookup_seconds", "Time to look up alternate hosts for an issuer on Censys");
+    public static final Counter CENSYS_LOOKUP_ERRORS = counter("spinner_censys_lookup_errors_total", "Censys lookups that failed");
+
+    public static final Gauge ACTIVE_SESSIONS = gauge("spinner_sessions_active", "TLS sessions currently being proxied");
+    public static final Counter SESSIONS_REJECTED = counter("spinner_sessions_rejected_total", "Client connections dropped because too many sessions were active");
+    public static final Histogram UPSTREAM_CONNECT_SECONDS = histogram("spinner_upstream_connect_seconds", "Time to connect to a redirect host");
+    public static final Counter UPSTREAM_POOL_HITS = counter("spinner_upstream_pool_hits_total", "Sessions given a redirect host connection opened ahead of time");
+    public static final Histogram SESSION_SECONDS = histogram("spinner_session_seconds", "Time from a client connecting until its session ends");
+    public static final Counter BYTES_TO_SERVER = counter("spinner_relayed_bytes_total", "direction=\"to_server\"", "Bytes of TLS records relayed");
+    public static final Counter BYTES_TO_CLIENT = counter("spinner_relayed_bytes_total", "direction=\"to_client\"", "Bytes of TLS records relayed");
+
+    //Ended sessions by verdict
+    private static final Map<String, Counter> verdicts = new HashMap<String, Counter>();
+    static {
+        for(String verdict : new String[]{"succeeded", "failed", "client_closed", "server_closed", "timeout", "error"}) {
+            verdicts.put(verdict, counter("spinner_sessions_total", "verdict=\"" + verdict + "\"", "TLS sessions ended, by verdict"));
+        }
+    }
+
+    /**
+     * @return the counter of sessions ended with the given verdict
+     */
+    public static Counter sessions(String verdict) {
+        return verdicts.get(verdict);
+    }
+
+    /**
+     * Exports the cache's hit and miss counts
+     */
+    public static void setDNSCache(DNSCache cache) {
+        dnsCache = cache;
+    }
+
+    /**
+     * Serves the metrics at /metrics on the loopback interface
+     */
+    public static HttpServer serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = format().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * @return every metric in Prometheus text format
+     */
+    public static String format() {
+        StringBuilder out = new StringBuilder();
+        String lastName = null;
+        for(Metric metric : metrics) {
+            //Metrics sharing a name differ only in labels, and share one header
+            if(!metric.name.equals(lastName)) {
+                out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+                out.append("# TYPE ").append(metric.name).append(' ').append(metric.type()).append('\n');
+                lastName = metric.name;
+            }
+            metric.write(out);
+        }
+        return out.toString();
+    }
+
+    private static Counter counter(String name, String help) {
+        return counter(name, null, help);
+    }
+
+    private static Counter counter(String name, String labels, String help) {
+        Counter counter = new Counter(name, labels, help);
+        metrics.add(counter);
+        return counter;
+    }
+
+    private static Gauge gauge(String name, String help) {
+        Gauge gauge = new Gauge(name, help);
+        metrics.add(gauge);
+        return gauge;
+    }
+
+    private static Reading reading(String name, String type, String help, LongSupplier value) {
+        Reading reading = new Reading(name, type, help, value);
+        metrics.add(reading);
+        return reading;
+    }
+
+    private static Histogram histogram(String name, String help) {
+        Histogram histogram = new Histogram(name, help);
+        metrics.add(histogram);
+        return histogram;
+    }
+
+    private static abstract class Metric {
+        final String name;
+        final String labels;
+        final String help;
+
+        Metric(String name, String labels, String help) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+        }
+
+        abstract String type();
+
+        abstract void write(StringBuilder out);
+
+        void sample(StringBuilder out, String suffix, String extraLabel, String value) {
+            out.append(name).append(suffix);
+            if(labels != null || extraLabel != null) {
+                out.append('{');
+                if(labels != null) out.append(labels);
+                if(labels != null && extraLabel != null) out.append(',');
+                if(extraLabel != null) out.append(extraLabel);
+                out.append('}');
+            }
+            out.append(' ').append(value).append('\n');
+        }
+    }
+
+    public static class Counter extends Metric {
+        private final LongAdder value = new LongAdder();
+
+        Counter(String name, String labels, String help) {
+            super(name, labels, help);
+        }
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        String type() {
+            return "counter";
+        }
+
+        void write(StringBuilder out) {
+            sample(out, "", null, Long.toString(value.sum()));
+        }
+    }
+
+    public static class Gauge extends Metric {
+        private final AtomicLong value = new AtomicLong();
+
+        Gauge(String name, String help) {
+            super(name, null, help);
+        }
+
+        public void inc() {
+            value.incrementAndGet();
+        }
+
+        public void dec() {
+            value.decrementAndGet();
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        String type() {
+            return "gauge";
+        }
+
+        void write(StringBuilder out) {
+            sample(out, "", null, Long.toString(value.get()));
+        }
+    }
+
+    /**
+     * A value counted elsewhere, read when the metrics are formatted
+     */
+    private static class Reading extends Metric {
+        private final String type;
+        private final LongSupplier value;
+
+        Reading(String name, String type, String help, LongSupplier value) {
+            super(name, null, help);
+            this.type = type;
+            this.value = value;
+        }
+
+        String type() {
+            return type;
+        }
+
+        void write(StringBuilder out) {
+            sample(out, "", null, Long.toString(value.getAsLong()));
+        }
+    }
+
+    public static class Histogram extends Metric {
+        private final long[] bounds;
+        //Observations per bucket, not cumulative, the last one is +Inf
+        private final LongAdder[] counts;
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram(String name, String help) {
+            super(name, null, help);
+            bounds = new long[BUCKETS.length];
+            counts = new LongAdder[BUCKETS.length + 1];
+            for(int i = 0; i < BUCKETS.length; i++) bounds[i] = (long) (BUCKETS[i] * 1e9);
+            for(int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+        }
+
+        public void observeNanos(long nanos) {
+            int i = 0;
+            while(i < bounds.length && nanos > bounds[i]) i++;
+            counts[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        /**
+         * Records the time since a System.nanoTime() reading
+         */
+        public void observeSince(long startNanos) {
+            observeNanos(System.nanoTime() - startNanos);
+        }
+
+        public void observeMillis(long millis) {
+            observeNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+
+        public long count() {
+            long count = 0;
+            for(LongAdder bucket : counts) count += bucket.sum();
+            return count;
+        }
+
+        String type() {
+            return "histogram";
+        }
+
+        void write(StringBuilder out) {
+            long cumulative = 0;
+            for(int i = 0; i < bounds.length; i++) {
+                cumulative += counts[i].sum();
+                sample(out, "_bucket", "le=\"" + BUCKETS[i] + "\"", Long.toString(cumulative));
+            }
+            cumulative += counts[bounds.length].sum();
+            sample(out, "_bucket", "le=\"+Inf\"", Long.toString(cumulative));
+            sample(out, "_sum", null, Double.toString(sumNanos.sum() / 1e9));
+            sample(out, "_count", null, Long.toString(cumulative));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Frames TLS records out of the bytes read from one side of a session.
+ * Records are parsed in place and forwarded straight out of the same
+ * buffer, so a record is never copied between reading and writing it.
+ * Buffers are recycled through a shared pool.
+ *
+ * Layout of the backing array:
+ *   [start, parsed)  records handed to the session, not yet forwarded
+ *   [parsed, end)    bytes read that do not form a complete record yet
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class RecordBuffer {
+
+    public static final int HEADER_LENGTH = 5;
+    //Largest TLS record we expect: 5 byte header plus 2^14 + 2048 bytes of ciphertext
+    public static final int MAX_RECORD_SIZE = HEADER_LENGTH + 16384 + 2048;
+    //Room for one full record plus whatever is still waiting to be forwarded
+    private static final int CAPACITY = 2 * MAX_RECORD_SIZE;
+    //Buffers kept around for reuse once their session has finished
+    private static final int MAX_POOLED = 256;
+    private static final Queue<RecordBuffer> pool = new ConcurrentLinkedQueue<RecordBuffer>();
+
+    private final byte[] array;
+    private final ByteBuffer buf;
+    private int start;
+    private int parsed;
+    private int end;
+    //Offset of the record returned by the last call to nextRecord
+    private int recordOffset;
+
+    private RecordBuffer() {
+        array = new byte[CAPACITY];
+        buf = ByteBuffer.wrap(array);
+    }
+
+    /**
+     * @return an empty buffer, taken from the pool when one is available
+     */
+    public static RecordBuffer acquire() {
+        RecordBuffer buffer = pool.poll();
+        return buffer != null ? buffer : new RecordBuffer();
+    }
+
+    /**
+     * Returns this buffer to the pool, it must not be used afterwards
+     */
+    public void release() {
+        start = parsed = end = recordOffset = 0;
+        if(pool.size() < MAX_POOLED) pool.add(this);
+    }
+
+    /**
+     * Reads as much as is available from the channel in a single call
+     * @return the number of bytes read, or -1 on end of stream
+     */
+    public int read(ReadableByteChannel channel) throws IOException {
+        //Slide unforwarded bytes to the front to make room
+        if(start > 0) {
+            System.arraycopy(array, start, array, 0, end - start);
+            parsed -= start;
+            end -= start;
+            start = 0;
+        }
+        if(end == array.length) return 0;
+        buf.limit(array.length).position(end);
+        int read = channel.read(buf);
+        if(read > 0) end += read;
+        return read;
+    }
+
+    /**
+     * Advances over the next complete record, if there is one
+     * @return true if a record is available through recordOffset and friends
+     */
+    public boolean nextRecord() {
+        if(end - parsed < HEADER_LENGTH) return false;
+        int total = HEADER_LENGTH + bodyLength(parsed);
+        if(end - parsed < total) return false;
+        recordOffset = parsed;
+        parsed += total;
+        return true;
+    }
+
+    /**
+     * @return true if the next record declares a length that can never fit
+     */
+    public boolean oversized() {
+        return end - parsed >= HEADER_LENGTH && HEADER_LENGTH + bodyLength(parsed) > MAX_RECORD_SIZE;
+    }
+
+    /**
+     * Writes out every parsed record that has not been forwarded yet
+     * @return true if nothing is left to forward
+     */
+    public boolean forward(WritableByteChannel channel) throws IOException {
+        if(start < parsed) {
+            buf.limit(parsed).position(start);
+            channel.write(buf);
+            start = buf.position();
+        }
+        return start == parsed;
+    }
+
+    /**
+     * @return true if no more bytes can be read until some are forwarded
+     */
+    public boolean isFull() {
+        return start == 0 && end == array.length;
+    }
+
+    public byte[] array() {
+        return array;
+    }
+
+    /**
+     * @return offset in array() of the current record, including its header
+     */
+    public int recordOffset() {
+        return recordOffset;
+    }
+
+    public int recordType() {
+        return array[recordOffset];
+    }
+
+    /**
+     * @return length of the current record excluding its header
+     */
+    public int recordLength() {
+        return bodyLength(recordOffset);
+    }
+
+    private int bodyLength(int offset) {
+        return ((array[offset + 3] & 0xff) << 8) | (array[offset + 4] & 0xff);
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Appends a JSON record per TLS session to a file, one per line, for
+ * analysing runs without parsing the log. Sessions hand their record
+ * over to a single writer thread, which serialises it and writes it out,
+ * so the event loop never waits on the disk. The file is flushed as soon
+ * as the writer has caught up, so a crash loses at most the records
+ * still queued.
+ *
+ * Records are dropped, and counted, rather than ever blocking a session
+ * when the queue is full.
+ */
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.Gson;
+
+public class ResultLog implements Runnable {
+
+    //Records waiting to be written
+    private static final int CAPACITY = 4096;
+    //Longest the writer sleeps before checking whether it has been closed
+    private static final long POLL_INTERVAL = 200;
+
+    private final Writer out;
+    private final AsyncLog log;
+    private final Gson gson = new Gson();
+    private final BlockingQueue<SessionResult> queue = new ArrayBlockingQueue<SessionResult>(CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    public ResultLog(String filename, AsyncLog log) throws IOException {
+        this.out = new BufferedWriter(new FileWriter(filename, true));
+        this.log = log;
+        this.writer = new Thread(this, "result-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queues the record of a finished session, which must not change afterwards
+     */
+    public void write(SessionResult result) {
+        if(closed || !queue.offer(result)) dropped.incrementAndGet();
+    }
+
+    public void run() {
+        List<SessionResult> batch = new ArrayList<SessionResult>();
+        while(true) {
+            try {
+                SessionResult first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if(first == null) {
+                    if(closed) break;
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch);
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                for(SessionResult result : batch) {
+                    out.write(gson.toJson(result));
+                    out.write('\n');
+                }
+                //Caught up, get the batch onto disk
+                if(queue.isEmpty()) out.flush();
+            } catch (IOException e) {
+                log.println(0, "WARNING: Could not write session result: " + e.getMessage());
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Writes out every record queued so far and closes the file
+     */
+    public void close() {
+        closed = true;
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            log.println(0, "WARNING: Could not close session results: " + e.getMessage());
+        }
+        if(dropped.get() > 0) log.println(0, "WARNING: " + dropped.get() + " session results dropped");
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Outcome of one proxied TLS session, written as a line of JSON to the
+ * results file. Times are in milliseconds since the epoch and are left
+ * out when the session never got that far.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SessionResult {
+
+    //Address of the device the session came from
+    String client;
+    //Domain the client asked for, its SNI if it sent one, and where it was sent
+    String realHost;
+    String sni;
+    String redirectHost;
+    //Protocol version the redirect host chose, e.g. TLS 1.3
+    String version;
+    //succeeded, failed, client_closed, server_closed, timeout or error,
+    //or rejected if the connection was dropped because too many sessions were active
+    String verdict;
+    //Phase whose deadline passed, for a timeout
+    String timeoutPhase;
+    //Milliseconds the client was given to answer the certificate, learned or fixed
+    Long responseTimeout;
+    //Description codes of the plaintext alerts sent by each side
+    List<Integer> clientAlerts = new ArrayList<Integer>();
+    List<Integer> serverAlerts = new ArrayList<Integer>();
+    //Level in the requested domain's real chain of each certificate the redirect host sent,
+    //0 for the leaf, -1 if it is not in the chain
+    List<Integer> chainMatches = new ArrayList<Integer>();
+    int messageCount;
+    //Bytes of records relayed in each direction
+    long bytesToServer;
+    long bytesToClient;
+    long start;
+    Long clientHello;
+    Long serverHello;
+    Long clientCCS;
+    Long serverCCS;
+    Long firstAppData;
+    long end;
+}
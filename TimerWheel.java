@@ -0,0 +1,124 @@
+/**
+ * Hashed timer wheel holding the deadlines of every session. Time is cut
+ * into ticks, and a timeout sits in the bucket of the tick it falls due
+ * in, so scheduling, cancelling and expiring cost the same however many
+ * sessions are open. Timeouts further away than one turn of the wheel
+ * share a bucket with nearer ones and are skipped until their turn.
+ *
+ * Not thread safe, it belongs to the event loop.
+ */
+
+public class TimerWheel {
+
+    private final long tickMs;
+    private final Timeout[] buckets;
+    private final int mask;
+    //Last tick expired
+    private long tick;
+    private int size;
+
+    /**
+     * A deadline that can be scheduled again once it has fired or been cancelled
+     */
+    public static class Timeout {
+        final Runnable task;
+        long dueTick;
+        //Bucket the timeout is in, -1 if not scheduled
+        int bucket = -1;
+        Timeout prev;
+        Timeout next;
+
+        public Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        public boolean isPending() {
+            return bucket >= 0;
+        }
+    }
+
+    /**
+     * @param tickMs resolution of the deadlines
+     * @param buckets ticks in one turn of the wheel, rounded up to a power of two
+     */
+    public TimerWheel(long tickMs, int buckets, long now) {
+        int capacity = 1;
+        while(capacity < buckets) capacity <<= 1;
+        this.tickMs = tickMs;
+        this.buckets = new Timeout[capacity];
+        this.mask = capacity - 1;
+        this.tick = now / tickMs;
+    }
+
+    /**
+     * Schedules the timeout to fire delayMs from the last call to advance, replacing any earlier deadline
+     */
+    public void schedule(Timeout timeout, long delayMs) {
+        cancel(timeout);
+        //Round up, a timeout never fires early
+        timeout.dueTick = tick + Math.max(1, (delayMs + tickMs - 1) / tickMs);
+        timeout.bucket = (int) (timeout.dueTick & mask);
+        timeout.next = buckets[timeout.bucket];
+        if(timeout.next != null) timeout.next.prev = timeout;
+        buckets[timeout.bucket] = timeout;
+        size++;
+    }
+
+    public void cancel(Timeout timeout) {
+        if(!timeout.isPending()) return;
+        if(timeout.prev != null) timeout.prev.next = timeout.next;
+        else buckets[timeout.bucket] = timeout.next;
+        if(timeout.next != null) timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        size--;
+    }
+
+    /**
+     * Fires every timeout due by now
+     */
+    public void advance(long now) {
+        long target = now / tickMs;
+        //After a long stall every bucket is visited once rather than once per missed tick
+        if(target - tick > buckets.length) tick = target - buckets.length;
+        while(tick < target) {
+            tick++;
+            expire((int) (tick & mask));
+        }
+    }
+
+    /**
+     * Fires the bucket's timeouts due by the current tick. Timeouts scheduled
+     * by the tasks fall due on a later tick, so this always ends.
+     */
+    private void expire(int bucket) {
+        Timeout timeout = buckets[bucket];
+        while(timeout != null) {
+            if(timeout.dueTick > tick) {
+                timeout = timeout.next;
+                continue;
+            }
+            cancel(timeout);
+            timeout.task.run();
+            //The task may have cancelled or scheduled others in this bucket, start over
+            timeout = buckets[bucket];
+        }
+    }
+
+    /**
+     * @return milliseconds until the next tick with a timeout in its bucket, or 0 if none are
+     * scheduled, which is how Selector.select takes a wait with no end
+     */
+    public long untilNext(long now) {
+        if(size == 0) return 0;
+        for(int i = 1; i <= buckets.length; i++) {
+            if(buckets[(int) ((tick + i) & mask)] != null) return Math.max(1, (tick + i) * tickMs - now);
+        }
+        return 0;
+    }
+
+    public int size() {
+        return size;
+    }
+}
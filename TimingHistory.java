@@ -0,0 +1,147 @@
+/**
+ * How long the app took to answer the redirect host's certificate in
+ * past sessions that succeeded, by domain, kept on disk between runs.
+ * An app that accepts the certificate answers about as fast each time,
+ * so once a domain has a few samples, a client that stays quiet for much
+ * longer than the slowest of them can be taken to have rejected it.
+ */
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+public class TimingHistory {
+
+    //Most recent samples kept per domain
+    private static final int WINDOW = 100;
+    //Samples needed before a domain's timeout is learned
+    private static final int MIN_SAMPLES = 5;
+
+    private File file;
+    private AsyncLog log;
+    //Learned timeout is the 99th percentile times the multiplier, kept between floor and ceiling
+    private double multiplier;
+    private long floorMs;
+    private long ceilingMs;
+    private Map<String, Entry> domains;
+    private boolean dirty = false;
+    private Gson gson = new Gson();
+
+    /**
+     * Loads the samples stored in the given file, if it exists
+     */
+    public TimingHistory(String filename, double multiplier, long floorMs, long ceilingMs, AsyncLog log) {
+        this.file = new File(filename);
+        this.log = log;
+        this.multiplier = multiplier;
+        this.floorMs = floorMs;
+        this.ceilingMs = ceilingMs;
+        this.domains = new HashMap<String, Entry>();
+        if(!file.exists()) return;
+        try (Reader in = new FileReader(file)) {
+            Type type = new TypeToken<HashMap<String, Entry>>(){}.getType();
+            Map<String, Entry> stored = gson.fromJson(in, type);
+            if(stored != null) domains.putAll(stored);
+        } catch (IOException | JsonParseException e) {
+            log.println(0, "WARNING: Could not read timing history " + filename + ": " + e.getMessage());
+        }
+        Iterator<Entry> it = domains.values().iterator();
+        while(it.hasNext()) {
+            Entry entry = it.next();
+            if(entry.samples == null || entry.samples.length != WINDOW || entry.count > WINDOW || entry.count < 0
+                    || entry.next < 0 || entry.next >= WINDOW) it.remove();
+            else learn(entry);
+        }
+    }
+
+    /**
+     * Adds the time a client took from the certificate to its ChangeCipherSpec, or TLS 1.3 Finished
+     */
+    public synchronized void record(String domain, long ms) {
+        if(domain == null) return;
+        Entry entry = domains.computeIfAbsent(domain, d -> new Entry());
+        entry.samples[entry.next] = (int) Math.min(ms, Integer.MAX_VALUE);
+        entry.next = (entry.next + 1) % WINDOW;
+        if(entry.count < WINDOW) entry.count++;
+        learn(entry);
+        dirty = true;
+    }
+
+    /**
+     * @return milliseconds to wait for the client to answer the certificate, or -1 if the domain has too few samples
+     */
+    public synchronized long timeout(String domain) {
+        Entry entry = domain != null ? domains.get(domain) : null;
+        return entry != null ? entry.timeout : -1;
+    }
+
+    /**
+     * @return number of samples held for the domain
+     */
+    public synchronized int samples(String domain) {
+        Entry entry = domain != null ? domains.get(domain) : null;
+        return entry != null ? entry.count : 0;
+    }
+
+    private void learn(Entry entry) {
+        if(entry.count < MIN_SAMPLES) {
+            entry.timeout = -1;
+            return;
+        }
+        //Only the first count slots are filled until the ring wraps
+        int[] sorted = Arrays.copyOf(entry.samples, entry.count);
+        Arrays.sort(sorted);
+        long p99 = sorted[(int) Math.ceil(0.99 * sorted.length) - 1];
+        entry.timeout = Math.max(floorMs, Math.min(ceilingMs, (long) Math.ceil(p99 * multiplier)));
+    }
+
+    /**
+     * Writes the history to a temporary file and moves it over the old one, if it has changed.
+     * The samples are copied under the lock, so sessions are not held up by the disk.
+     */
+    public void save() {
+        String json;
+        synchronized(this) {
+            if(!dirty) return;
+            json = gson.toJson(domains);
+            dirty = false;
+        }
+        synchronized(file) {
+            File tmp = new File(file.getPath() + ".tmp");
+            try (Writer out = new FileWriter(tmp)) {
+                out.write(json);
+            } catch (IOException e) {
+                log.println(0, "WARNING: Could not write timing history " + file + ": " + e.getMessage());
+                return;
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                log.println(0, "WARNING: Could not write timing history " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static class Entry {
+        //Milliseconds from the certificate to the client's answer, a ring of the latest WINDOW
+        int[] samples = new int[WINDOW];
+        int count;
+        int next;
+        //Learned from the samples, not persisted
+        transient long timeout = -1;
+    }
+}
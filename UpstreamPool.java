@@ -0,0 +1,241 @@
+/**
+ * TCP connections to redirect hosts, opened ahead of the sessions that
+ * need them. Once a domain is given a redirect host at DNS time, a few
+ * connections to the host are opened in the background, so the session
+ * started by the client's ClientHello does not wait a round trip for its
+ * upstream connect.
+ *
+ * Connects race the host's resolved addresses against each other and keep
+ * whichever connects first.
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class UpstreamPool {
+
+    //Addresses of a host raced against each other
+    private static final int MAX_RACED = 3;
+
+    private volatile int port;
+    //Connections kept ready per host
+    private final int perHost;
+    //Ready connections older than this are closed rather than handed out, servers drop idle clients
+    private final long maxIdleMs;
+    private final int connectTimeoutMs;
+    private final ThreadPoolExecutor connectPool;
+    //Ready connections by host, oldest first
+    private final Map<String, Deque<Idle>> ready = new HashMap<String, Deque<Idle>>();
+    //Connects in progress by host, so a host is not warmed more than once at a time
+    private final Map<String, Integer> opening = new HashMap<String, Integer>();
+    //Reads the liveness probe, only used under the pool's lock
+    private final ByteBuffer probe = ByteBuffer.allocate(1);
+    private volatile boolean closed = false;
+
+    public UpstreamPool(int port, int perHost, long maxIdleMs, int connectTimeoutMs) {
+        this.port = port;
+        this.perHost = perHost;
+        this.maxIdleMs = maxIdleMs;
+        this.connectTimeoutMs = connectTimeoutMs;
+        //Bounded, extra warm ups are skipped, sessions then connect themselves
+        connectPool = new ThreadPoolExecutor(4, 4, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(64), task -> {
+            Thread thread = new Thread(task, "upstream-pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        connectPool.allowCoreThreadTimeOut(true);
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Opens connections to the host in the background until perHost are ready or opening
+     */
+    public void warm(final String host) {
+        if(host == null || closed) return;
+        int wanted;
+        synchronized(this) {
+            prune(host);
+            Deque<Idle> idle = ready.get(host);
+            int have = (idle != null ? idle.size() : 0) + opening.getOrDefault(host, 0);
+            wanted = perHost - have;
+            if(wanted <= 0) return;
+            opening.put(host, opening.getOrDefault(host, 0) + wanted);
+        }
+        for(int i = 0; i < wanted; i++) {
+            try {
+                connectPool.execute(new Runnable() {
+                    public void run() {
+                        SocketChannel channel = null;
+                        try {
+                            channel = connect(host);
+                        } catch (IOException e) {
+                            //The session will try again itself
+                        } finally {
+                            opened(host, channel);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                opened(host, null);
+            }
+        }
+    }
+
+    private synchronized void opened(String host, SocketChannel channel) {
+        int left = opening.getOrDefault(host, 1) - 1;
+        if(left > 0) opening.put(host, left);
+        else opening.remove(host);
+        if(channel == null) return;
+        if(closed) {
+            closeQuietly(channel);
+            return;
+        }
+        ready.computeIfAbsent(host, h -> new ArrayDeque<Idle>()).addLast(new Idle(channel));
+    }
+
+    /**
+     * Hands out a ready connection to the host, in non-blocking mode. The caller warms
+     * the host again if it is still being redirected to.
+     * @return the connection, or null if none is ready
+     */
+    public SocketChannel take(String host) {
+        SocketChannel channel = null;
+        synchronized(this) {
+            prune(host);
+            Deque<Idle> idle = ready.get(host);
+            while(idle != null && !idle.isEmpty() && channel == null) {
+                SocketChannel candidate = idle.pollFirst().channel;
+                if(alive(candidate)) channel = candidate;
+                else closeQuietly(candidate);
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * Connects to the host, racing up to three of its addresses, and blocks until one connects
+     * @return the connection, in non-blocking mode
+     */
+    public SocketChannel connect(String host) throws IOException {
+        InetAddress[] addresses = InetAddress.getAllByName(host);
+        int port = this.port;
+        List<SocketChannel> attempts = new ArrayList<SocketChannel>();
+        SocketChannel winner = null;
+        try (Selector selector = Selector.open()) {
+            for(int i = 0; i < addresses.length && i < MAX_RACED; i++) {
+                SocketChannel channel = SocketChannel.open();
+                attempts.add(channel);
+                channel.configureBlocking(false);
+                if(channel.connect(new InetSocketAddress(addresses[i], port))) return winner = channel;
+                channel.register(selector, SelectionKey.OP_CONNECT);
+            }
+            long deadline = System.currentTimeMillis() + connectTimeoutMs;
+            IOException lastError = null;
+            int failed = 0;
+            while(failed < attempts.size()) {
+                long wait = deadline - System.currentTimeMillis();
+                if(wait <= 0) throw new IOException("Timed out connecting to " + host);
+                selector.select(wait);
+                for(SelectionKey key : selector.selectedKeys()) {
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    try {
+                        if(channel.finishConnect()) {
+                            key.cancel();
+                            return winner = channel;
+                        }
+                    } catch (IOException e) {
+                        lastError = e;
+                        key.cancel();
+                        failed++;
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+            throw lastError != null ? lastError : new IOException("Could not connect to " + host);
+        } finally {
+            for(SocketChannel channel : attempts) {
+                if(channel != winner) closeQuietly(channel);
+            }
+        }
+    }
+
+    /**
+     * Drops the connections of every host that have been idle too long,
+     * including hosts no session has asked for since they were warmed
+     */
+    public synchronized void sweep() {
+        for(String host : new ArrayList<String>(ready.keySet())) prune(host);
+    }
+
+    /**
+     * Drops the host's connections that have been idle too long
+     */
+    private void prune(String host) {
+        Deque<Idle> idle = ready.get(host);
+        if(idle == null) return;
+        long oldest = System.currentTimeMillis() - maxIdleMs;
+        while(!idle.isEmpty() && idle.peekFirst().since < oldest) closeQuietly(idle.pollFirst().channel);
+        if(idle.isEmpty()) ready.remove(host);
+    }
+
+    /**
+     * TLS servers say nothing before the ClientHello, so a read that returns
+     * anything but zero bytes means the server has given up on the connection
+     */
+    private boolean alive(SocketChannel channel) {
+        try {
+            probe.clear();
+            return channel.isOpen() && channel.read(probe) == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Closes every ready connection and stops warming
+     */
+    public void close() {
+        closed = true;
+        connectPool.shutdownNow();
+        synchronized(this) {
+            for(Deque<Idle> idle : ready.values()) {
+                for(Idle entry : idle) closeQuietly(entry.channel);
+            }
+            ready.clear();
+        }
+    }
+
+    private static class Idle {
+        final SocketChannel channel;
+        final long since = System.currentTimeMillis();
+
+        Idle(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+}
@@ -3,9 +3,16 @@ import java.security.MessageDigest;
 public class Utils {
 
      public static String getSha256(byte[] value) {
+		return getSha256(value, 0, value.length);
+	 }
+
+    /**
+     * @return the SHA-256 of length bytes of value from offset, in hex
+     */
+     public static String getSha256(byte[] value, int offset, int length) {
 		try{
 			MessageDigest md = MessageDigest.getInstance("SHA-256");
-			md.update(value);
+			md.update(value, offset, length);
 			return byteArrayToHexString(md.digest());
 		} catch(Exception ex){
 			throw new RuntimeException(ex);
@@ -15,11 +22,16 @@ public class Utils {
     /**
      * @param needle A string to look for
      * @param hayStack An array of strings
-     * @return the index of the first string in hayStack ends with needle, or -1 is no such string exists.
+     * @return the index of the first string in hayStack that needle is, or is a subdomain of, or -1 is no such string exists.
+     * DomainList does the same lookup without scanning the whole array.
      */
     public static int stringListMatch(String needle, String[] hayStack) {
         for (int i = 0; i < hayStack.length; i++) {
-            if (needle.endsWith(hayStack[i]))  { return i; }
+            String domain = hayStack[i];
+            if (domain.isEmpty() || !needle.endsWith(domain)) continue;
+            //Only match on a label boundary, so badexample.com is not taken for example.com
+            int boundary = needle.length() - domain.length();
+            if (boundary == 0 || needle.charAt(boundary - 1) == '.') { return i; }
         }
         return -1;
     }
@@ -0,0 +1,60 @@
+package spinner;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing DNS queries and forming spoofed responses.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DnsBench {
+
+    @Param({"dns_query_a", "dns_query_a_edns", "dns_query_aaaa"})
+    String query;
+
+    static final byte[] SPOOF_ADDRESS = {(byte) 192, 0, 2, 1};
+
+    DNSCodec codec;
+    ByteBuffer data;
+
+    @Setup
+    public void setup() throws Exception {
+        codec = new DNSCodec();
+        data = ByteBuffer.wrap(Fixtures.load(query));
+        if(!codec.parse(data)) throw new IllegalStateException("Fixture " + query + " does not parse");
+    }
+
+    @Benchmark
+    public String parse() {
+        codec.parse(data);
+        return codec.name();
+    }
+
+    @Benchmark
+    public ByteBuffer spoof() {
+        return codec.spoof(SPOOF_ADDRESS, 10);
+    }
+
+    @Benchmark
+    public ByteBuffer parseAndSpoof() {
+        codec.parse(data);
+        return codec.spoof(SPOOF_ADDRESS, 10);
+    }
+}
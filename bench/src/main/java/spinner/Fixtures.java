@@ -0,0 +1,93 @@
+package spinner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Captured traffic used by the benchmarks, stored as hex under /fixtures:
+ *   client_hello.hex     ClientHello record sent by a JDK 17 client, SNI www.example.com
+ *   server_flight.hex    TLS 1.2 ServerHello, Certificate (3 certificate chain),
+ *                        ServerKeyExchange and ServerHelloDone records
+ *   dns_query_*.hex      A, A with EDNS and AAAA queries for clientservices.googleapis.com
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    static byte[] load(String name) {
+        try (InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name + ".hex")) {
+            if(in == null) throw new IllegalArgumentException("No fixture " + name);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while((read = in.read(buffer)) > 0) out.write(buffer, 0, read);
+            return Utils.hexStringToByteArray(new String(out.toByteArray(), StandardCharsets.US_ASCII).trim());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Hands out the same bytes on every read, split into reads of at most chunk bytes
+     */
+    static class Source implements ReadableByteChannel {
+        private final byte[] data;
+        private final int chunk;
+        private int position;
+
+        Source(byte[] data, int chunk) {
+            this.data = data;
+            this.chunk = chunk;
+        }
+
+        void rewind() {
+            position = 0;
+        }
+
+        boolean exhausted() {
+            return position == data.length;
+        }
+
+        public int read(ByteBuffer dst) {
+            if(exhausted()) return -1;
+            int length = Math.min(Math.min(chunk, dst.remaining()), data.length - position);
+            dst.put(data, position, length);
+            position += length;
+            return length;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * Accepts and discards everything written to it
+     */
+    static class Sink implements WritableByteChannel {
+        long written;
+
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+            written += length;
+            return length;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+}
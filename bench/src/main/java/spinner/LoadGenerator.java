@@ -0,0 +1,490 @@
+package spinner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+
+/**
+ * Replays many apps at once against an in-process Spinner, with local
+ * stand-ins for the real hosts, the real DNS server and Censys. Each
+ * simulated client looks a domain up through Spinner's DNS server and
+ * then handshakes through its TLS proxy, either as an app that accepts
+ * the redirect host's certificate, or as one that checks the hostname and
+ * rejects it, with an alert or by dropping the connection. Spinner's verdicts are compared with what each client did.
+ *
+ * Domains are loopback addresses 127.0.0.2 upwards, so the certificate
+ * fetch reaches the stand-in without any name resolution. Redirect hosts
+ * handed out by the Censys stand-in are 127.0.1.x.
+ *
+ * Run: java -cp bench/target/benchmarks.jar spinner.LoadGenerator --levels 1,8,32,64
+ */
+public class LoadGenerator {
+
+    @Parameter(names = "--levels", description = "Numbers of concurrent clients to step through")
+    List<Integer> levels = Arrays.asList(1, 4, 16, 64);
+    @Parameter(names = "--handshakes", description = "Handshakes made at each level")
+    int handshakes = 200;
+    @Parameter(names = "--domains", description = "Distinct domains the clients ask for, at most 250")
+    int domains = 50;
+    @Parameter(names = "--rejecting", description = "Fraction of clients that check the hostname and reject the certificate")
+    double rejecting = 0.5;
+    @Parameter(names = "--dropping", description = "Fraction of rejecting clients that reset the connection instead of sending an alert")
+    double dropping = 0;
+    @Parameter(names = "--stalling", description = "Fraction of rejecting clients that go quiet after the server's reply, leaving Spinner to time out")
+    double stalling = 0;
+    @Parameter(names = "--certificate-timeout", description = "Milliseconds Spinner waits for the client to answer the server's certificate")
+    long certificateTimeout = 5000;
+    @Parameter(names = "--learn-timeouts", description = "Let Spinner learn each domain's certificate timeout from the sessions that succeed")
+    boolean learnTimeouts;
+    @Parameter(names = "--forwarded", description = "Fraction of handshakes preceded by a lookup of a domain Spinner forwards to the real DNS server")
+    double forwarded = 0.2;
+    @Parameter(names = "--protocol", description = "TLS version the stand-in servers speak, TLSv1.2 or TLSv1.3")
+    String protocol = "TLSv1.2";
+    @Parameter(names = "--devices", description = "Devices the clients are spread over, each with its own loopback address, at most 250")
+    int devices = 1;
+    @Parameter(names = {"-h", "--help"}, help = true)
+    boolean help;
+
+    int dnsPort;
+    int tlsPort;
+    SSLContext acceptingContext;
+    SSLSocketFactory acceptingFactory;
+    SSLSocketFactory rejectingFactory;
+    final AtomicLong forwardedNames = new AtomicLong();
+    InetAddress[] deviceAddresses;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator load = new LoadGenerator();
+        JCommander jc = new JCommander(load);
+        jc.parse(args);
+        if(load.help) {
+            jc.usage();
+            return;
+        }
+        load.run();
+        System.exit(0);
+    }
+
+    void run() throws Exception {
+        domains = Math.max(1, Math.min(domains, 250));
+        devices = Math.max(1, Math.min(devices, 250));
+        deviceAddresses = new InetAddress[devices];
+        deviceAddresses[0] = InetAddress.getLoopbackAddress();
+        for(int d = 1; d < devices; d++) deviceAddresses[d] = InetAddress.getByAddress(new byte[]{127, 0, 2, (byte) d});
+        File dir = Files.createTempDirectory("spinner-load").toFile();
+        System.out.println("Working directory: " + dir);
+
+        X509Certificate root = StandIns.createChain(dir);
+        StandIns.TlsServer tlsServer = new StandIns.TlsServer(dir, protocol);
+        StandIns.DnsServer dnsServer = new StandIns.DnsServer();
+        StandIns.CensysServer censys = new StandIns.CensysServer(8);
+        start(tlsServer, "tls-stand-in");
+        start(dnsServer, "dns-stand-in");
+
+        //Spinner itself, on free ports, with its caches in the working directory
+        File configFile = new File(dir, "config");
+        try (PrintWriter out = new PrintWriter(configFile)) {
+            out.println("dns=127.0.0.1");
+            out.println("dnsPort=" + dnsServer.port());
+            out.println("upstreamPort=" + tlsServer.port());
+            out.println("censysURL=" + censys.url());
+            out.println("censysID=load");
+            out.println("censysSecret=load");
+            out.println("certCache=" + new File(dir, "cert_cache.json"));
+            out.println("censysCache=" + new File(dir, "censys_cache.json"));
+        }
+        //Only the test domains are spoofed, anything else goes to the real DNS server
+        File spoofList = new File(dir, "spoof_list");
+        try (PrintWriter out = new PrintWriter(spoofList)) {
+            for(int i = 0; i < domains; i++) out.println(domain(i));
+        }
+        Config config = new Config(configFile.getPath(), spoofList.getPath());
+        CheckCertificate.portNo = config.upstreamPort;
+        CheckCertificate.censysURL = config.censysURL;
+        CheckCertificate.censysPages = config.censysPages;
+        AsyncLog log = new AsyncLog(new File(dir, "log").getPath(), -1);
+        CheckCertificate.log = log;
+        int maxLevel = Collections.max(levels);
+        MITM mitm = new MITM(0, log, false, false, 2 * maxLevel + 8);
+        FakeDNS dns = new FakeDNS(mitm, 0, log, null, false, false, config);
+        dnsPort = freePort();
+        tlsPort = freePort();
+        dns.setPort(dnsPort);
+        mitm.setPorts(tlsPort, config.upstreamPort);
+        mitm.setTimeouts(5000, 5000, certificateTimeout, 5000);
+        if(learnTimeouts) mitm.setTimingHistory(new TimingHistory(new File(dir, "timing_history.json").getPath(), 3, 200, 5000, log));
+        ResultLog results = new ResultLog(new File(dir, "results.jsonl").getPath(), log);
+        mitm.setResultLog(results);
+        start(dns, "spinner-dns");
+        start(mitm, "spinner-mitm");
+        waitForSpinner();
+
+        acceptingContext = acceptingContext();
+        acceptingFactory = acceptingContext.getSocketFactory();
+        rejectingFactory = rejectingContext(root).getSocketFactory();
+
+        //Look every domain up once, so levels measure steady state rather than the first lookups
+        long started = System.nanoTime();
+        for(int i = 0; i < domains; i++) timedLookup(domain(i), device(i));
+        System.out.printf(Locale.ROOT, "Warm-up: %d domains looked up in %d ms (%d certificate fetches, %d Censys lookups)%n%n",
+                domains, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started),
+                Metrics.CERT_FETCH_SECONDS.count(), censys.lookups.get());
+
+        System.out.println("clients  handshakes   secs    hs/s  dns p50  dns p99   hs p50   hs p99  succeeded  failed  cl.closed  sv.closed  timeout  error  client errors  correct");
+        for(int clients : levels) {
+            Level level = runLevel(clients);
+            System.out.println(level.report());
+        }
+        System.out.printf(Locale.ROOT, "%nUpstream connections opened ahead: %d of %d sessions%n",
+                Metrics.UPSTREAM_POOL_HITS.get(), Metrics.UPSTREAM_POOL_HITS.get() + Metrics.UPSTREAM_CONNECT_SECONDS.count());
+        System.out.printf(Locale.ROOT, "Session records: %s%n", new File(dir, "results.jsonl"));
+
+        results.close();
+        tlsServer.close();
+        dnsServer.close();
+        censys.close();
+    }
+
+    /**
+     * Runs the given number of clients until the level's handshakes are used up
+     */
+    Level runLevel(final int clients) throws InterruptedException {
+        final Level level = new Level(clients);
+        final AtomicInteger next = new AtomicInteger();
+        awaitIdle();
+        long[] before = verdictCounts();
+        ExecutorService pool = Executors.newFixedThreadPool(clients, StandIns.daemon("load-client"));
+        long started = System.nanoTime();
+        for(int c = 0; c < clients; c++) {
+            pool.execute(() -> {
+                int i;
+                while((i = next.getAndIncrement()) < handshakes) {
+                    client(i, level);
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.HOURS);
+        level.nanos = System.nanoTime() - started;
+
+        //Spinner gives its verdict once it has seen the client's last record, wait for the stragglers
+        awaitIdle();
+        long[] after = verdictCounts();
+        for(int v = 0; v < after.length; v++) level.verdicts[v] = after[v] - before[v];
+        return level;
+    }
+
+    /**
+     * One simulated app: a DNS lookup, then a TLS handshake through Spinner
+     */
+    void client(int i, Level level) {
+        String domain = domain(i);
+        InetAddress device = device(i);
+        boolean rejects = ThreadLocalRandom.current().nextDouble() < rejecting;
+        double silent = rejects ? ThreadLocalRandom.current().nextDouble() : 1;
+        boolean drops = silent < dropping;
+        boolean stalls = !drops && silent < dropping + stalling;
+        try {
+            if(ThreadLocalRandom.current().nextDouble() < forwarded) {
+                level.dnsLatency.add(timedLookup("api" + forwardedNames.incrementAndGet() + ".forwarded.test", device).nanos);
+            }
+            Lookup lookup = timedLookup(domain, device);
+            level.dnsLatency.add(lookup.nanos);
+            if(lookup.address == null) {
+                level.clientErrors.incrementAndGet();
+                return;
+            }
+
+            long started = System.nanoTime();
+            boolean handshook = drops || stalls ? drop(device, lookup.address, domain, stalls)
+                    : handshake(device, lookup.address, domain, rejects);
+            level.handshakeLatency.add(System.nanoTime() - started);
+            if(drops) level.expectedDropping.incrementAndGet();
+            else if(stalls) level.expectedStalling.incrementAndGet();
+            else if(rejects) level.expectedRejecting.incrementAndGet();
+            else level.expectedAccepting.incrementAndGet();
+            //An accepting client must complete the handshake, a rejecting one must not
+            if(handshook == rejects) level.clientErrors.incrementAndGet();
+        } catch (IOException e) {
+            level.clientErrors.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return true if the handshake completed and application data was sent
+     */
+    boolean handshake(InetAddress device, InetAddress address, String domain, boolean rejects) throws IOException {
+        Socket tcp = new Socket();
+        tcp.bind(new InetSocketAddress(device, 0));
+        tcp.connect(new InetSocketAddress(address, tlsPort), 5000);
+        SSLSocketFactory factory = rejects ? rejectingFactory : acceptingFactory;
+        try (SSLSocket ssl = (SSLSocket) factory.createSocket(tcp, domain, tlsPort, true)) {
+            ssl.setSoTimeout(15000);
+            //Domains are address literals, for which the JDK sends no SNI unless told to
+            SSLParameters parameters = ssl.getSSLParameters();
+            parameters.setServerNames(Collections.singletonList(new SNIHostName(domain)));
+            if(rejects) parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            ssl.setSSLParameters(parameters);
+            try {
+                ssl.startHandshake();
+            } catch (SSLException e) {
+                return false;
+            }
+            OutputStream out = ssl.getOutputStream();
+            out.write(("GET / HTTP/1.1\r\nHost: " + domain + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            return true;
+        }
+    }
+
+    /**
+     * An app that rejects the certificate without an alert: it sends its
+     * ClientHello, waits for the start of the server's reply, then either
+     * resets the connection or says nothing more until Spinner gives up
+     * @return false, the handshake never completes
+     */
+    boolean drop(InetAddress device, InetAddress address, String domain, boolean stall) throws IOException {
+        SSLEngine engine = acceptingContext.createSSLEngine(domain, tlsPort);
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setServerNames(Collections.singletonList(new SNIHostName(domain)));
+        engine.setSSLParameters(parameters);
+        ByteBuffer hello = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        engine.beginHandshake();
+        engine.wrap(ByteBuffer.allocate(0), hello);
+        try (Socket tcp = new Socket()) {
+            tcp.bind(new InetSocketAddress(device, 0));
+            tcp.connect(new InetSocketAddress(address, tlsPort), 5000);
+            tcp.setSoTimeout(15000);
+            tcp.getOutputStream().write(hello.array(), 0, hello.position());
+            byte[] reply = new byte[4096];
+            if(tcp.getInputStream().read(reply) < 0) throw new IOException("Closed before the server replied");
+            if(stall) {
+                while(tcp.getInputStream().read(reply) >= 0) {}
+            } else {
+                tcp.setSoLinger(true, 0);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends an A query to Spinner's DNS server from the device, retrying like a resolver would
+     */
+    Lookup timedLookup(String name, InetAddress device) throws IOException {
+        Lookup lookup = new Lookup();
+        byte[] query = query(name);
+        long started = System.nanoTime();
+        try (DatagramSocket socket = new DatagramSocket(new InetSocketAddress(device, 0))) {
+            socket.setSoTimeout(5000);
+            byte[] buffer = new byte[512];
+            DatagramPacket response = new DatagramPacket(buffer, buffer.length);
+            for(int attempt = 0; attempt < 3 && lookup.address == null; attempt++) {
+                socket.send(new DatagramPacket(query, query.length, InetAddress.getLoopbackAddress(), dnsPort));
+                try {
+                    socket.receive(response);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                int length = response.getLength();
+                //Last record of the response is the A record, its address is the last four bytes
+                if(length >= query.length + 16 && buffer[0] == query[0] && buffer[1] == query[1]) {
+                    lookup.address = InetAddress.getByAddress(Arrays.copyOfRange(buffer, length - 4, length));
+                }
+            }
+        }
+        lookup.nanos = System.nanoTime() - started;
+        return lookup;
+    }
+
+    static byte[] query(String name) {
+        byte[] labels = name.getBytes(StandardCharsets.US_ASCII);
+        byte[] query = new byte[12 + labels.length + 2 + 4];
+        int id = ThreadLocalRandom.current().nextInt(65536);
+        query[0] = (byte) (id >> 8);
+        query[1] = (byte) id;
+        query[2] = 0x01;
+        query[5] = 1;
+        int pos = 12;
+        for(String label : name.split("\\.")) {
+            query[pos++] = (byte) label.length();
+            for(int i = 0; i < label.length(); i++) query[pos++] = (byte) label.charAt(i);
+        }
+        query[pos++] = 0;
+        query[pos + 1] = 1;
+        query[pos + 3] = 1;
+        return query;
+    }
+
+    String domain(int i) {
+        return "127.0.0." + (2 + i % domains);
+    }
+
+    /**
+     * @return the address client i connects from, a device uses the same one for DNS and TLS
+     */
+    InetAddress device(int i) {
+        return deviceAddresses[i % devices];
+    }
+
+    static long[] verdictCounts() {
+        String[] verdicts = Level.VERDICTS;
+        long[] counts = new long[verdicts.length];
+        for(int v = 0; v < verdicts.length; v++) counts[v] = Metrics.sessions(verdicts[v]).get();
+        return counts;
+    }
+
+    /**
+     * Waits for Spinner to finish every session, including the probe made by waitForSpinner
+     */
+    static void awaitIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 15000;
+        while(Metrics.ACTIVE_SESSIONS.get() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(20);
+    }
+
+    void waitForSpinner() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while(System.currentTimeMillis() < deadline) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), tlsPort), 500);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Spinner did not start listening on port " + tlsPort);
+    }
+
+    static SSLContext acceptingContext() throws Exception {
+        TrustManager[] trustAll = new TrustManager[] { new X509TrustManager() {
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+
+            public void checkClientTrusted(X509Certificate[] certs, String authType) {
+            }
+
+            public void checkServerTrusted(X509Certificate[] certs, String authType) {
+            }
+        } };
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustAll, null);
+        return context;
+    }
+
+    static SSLContext rejectingContext(X509Certificate root) throws Exception {
+        KeyStore trusted = KeyStore.getInstance(KeyStore.getDefaultType());
+        trusted.load(null, null);
+        trusted.setCertificateEntry("root", root);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trusted);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, tmf.getTrustManagers(), null);
+        return context;
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static void start(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static class Lookup {
+        InetAddress address;
+        long nanos;
+    }
+
+    /**
+     * Measurements from one concurrency level
+     */
+    static class Level {
+        static final String[] VERDICTS = {"succeeded", "failed", "client_closed", "server_closed", "timeout", "error"};
+
+        final int clients;
+        final List<Long> dnsLatency = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Long> handshakeLatency = Collections.synchronizedList(new ArrayList<Long>());
+        final AtomicLong expectedAccepting = new AtomicLong();
+        final AtomicLong expectedRejecting = new AtomicLong();
+        final AtomicLong expectedDropping = new AtomicLong();
+        final AtomicLong expectedStalling = new AtomicLong();
+        final AtomicLong clientErrors = new AtomicLong();
+        final long[] verdicts = new long[VERDICTS.length];
+        long nanos;
+
+        Level(int clients) {
+            this.clients = clients;
+        }
+
+        String report() {
+            long made = handshakeLatency.size();
+            double seconds = nanos / 1e9;
+            //Spinner is right as often as its verdict counts line up with what the clients did
+            long correct = Math.min(verdicts[0], expectedAccepting.get()) + Math.min(verdicts[1], expectedRejecting.get())
+                    + Math.min(verdicts[2], expectedDropping.get()) + Math.min(verdicts[4], expectedStalling.get());
+            return String.format(Locale.ROOT, "%7d  %10d  %5.1f  %6.1f  %7.1f  %7.1f  %7.1f  %7.1f  %9d  %6d  %9d  %9d  %7d  %5d  %13d  %6.1f%%",
+                    clients, made, seconds, made / seconds,
+                    percentile(dnsLatency, 0.5), percentile(dnsLatency, 0.99),
+                    percentile(handshakeLatency, 0.5), percentile(handshakeLatency, 0.99),
+                    verdicts[0], verdicts[1], verdicts[2], verdicts[3], verdicts[4], verdicts[5], clientErrors.get(),
+                    made == 0 ? 0 : 100.0 * correct / made);
+        }
+
+        /**
+         * @return the percentile of the latencies in milliseconds
+         */
+        static double percentile(List<Long> latencies, double p) {
+            List<Long> sorted;
+            synchronized(latencies) {
+                sorted = new ArrayList<Long>(latencies);
+            }
+            if(sorted.isEmpty()) return 0;
+            Collections.sort(sorted);
+            int index = (int) Math.ceil(p * sorted.size()) - 1;
+            return sorted.get(Math.max(0, index)) / 1e6;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package spinner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-ins for everything Spinner talks to, so a load test needs
+ * no network: a TLS server playing both the requested domains and the
+ * redirect hosts, the real DNS server and the Censys search API.
+ */
+final class StandIns {
+
+    static final String PASSWORD = "changeit";
+    //Name on the stand-in leaf certificate, never one the clients ask for
+    static final String LEAF_NAME = "spinner-load.test";
+
+    private StandIns() {
+    }
+
+    /**
+     * Creates a root CA, an issuing CA and a leaf certificate with keytool
+     * @return the root certificate, for clients that validate the chain
+     */
+    static X509Certificate createChain(File dir) throws IOException, InterruptedException {
+        keytool(dir, "-genkeypair", "-alias", "root", "-keyalg", "RSA", "-keysize", "2048", "-dname", "CN=Spinner Load Root CA",
+                "-ext", "bc:c", "-validity", "3650", "-keystore", "root.p12", "-storetype", "PKCS12");
+        keytool(dir, "-exportcert", "-rfc", "-alias", "root", "-keystore", "root.p12", "-file", "root.pem");
+        keytool(dir, "-genkeypair", "-alias", "ca", "-keyalg", "RSA", "-keysize", "2048", "-dname", "CN=Spinner Load CA",
+                "-validity", "3650", "-keystore", "ca.p12", "-storetype", "PKCS12");
+        keytool(dir, "-certreq", "-alias", "ca", "-keystore", "ca.p12", "-file", "ca.csr");
+        keytool(dir, "-gencert", "-rfc", "-alias", "root", "-keystore", "root.p12", "-ext", "bc=0", "-validity", "3650",
+                "-infile", "ca.csr", "-outfile", "ca.pem");
+        keytool(dir, "-importcert", "-noprompt", "-alias", "root", "-keystore", "ca.p12", "-file", "root.pem");
+        keytool(dir, "-importcert", "-alias", "ca", "-keystore", "ca.p12", "-file", "ca.pem");
+        keytool(dir, "-genkeypair", "-alias", "leaf", "-keyalg", "RSA", "-keysize", "2048", "-dname", "CN=" + LEAF_NAME,
+                "-validity", "3650", "-keystore", "leaf.p12", "-storetype", "PKCS12");
+        keytool(dir, "-certreq", "-alias", "leaf", "-keystore", "leaf.p12", "-file", "leaf.csr");
+        keytool(dir, "-gencert", "-rfc", "-alias", "ca", "-keystore", "ca.p12", "-ext", "san=dns:" + LEAF_NAME,
+                "-validity", "3650", "-infile", "leaf.csr", "-outfile", "leaf.pem");
+        keytool(dir, "-importcert", "-noprompt", "-alias", "root", "-keystore", "leaf.p12", "-file", "root.pem");
+        keytool(dir, "-importcert", "-noprompt", "-alias", "ca", "-keystore", "leaf.p12", "-file", "ca.pem");
+        keytool(dir, "-importcert", "-alias", "leaf", "-keystore", "leaf.p12", "-file", "leaf.pem");
+        try (InputStream in = new FileInputStream(new File(dir, "root.pem"))) {
+            return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+        } catch (CertificateException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void keytool(File dir, String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin/keytool").getPath());
+        command.addAll(Arrays.asList(args));
+        command.add("-storepass");
+        command.add(PASSWORD);
+        Process process = new ProcessBuilder(command).directory(dir).redirectErrorStream(true)
+                .redirectOutput(new File(dir, "keytool.log")).start();
+        if(process.waitFor() != 0) throw new IOException("keytool failed: " + String.join(" ", args));
+    }
+
+    /**
+     * TLS server answering on every loopback address with the leaf,
+     * issuing CA and root chain. Completes handshakes and reads until the
+     * client or Spinner closes the connection.
+     */
+    static class TlsServer implements Runnable {
+        final SSLServerSocket socket;
+        final ExecutorService workers = Executors.newCachedThreadPool(daemon("tls-stand-in"));
+        final AtomicLong handshakes = new AtomicLong();
+
+        TlsServer(File dir, String protocol) throws Exception {
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            try (InputStream in = new FileInputStream(new File(dir, "leaf.p12"))) {
+                keyStore.load(in, PASSWORD.toCharArray());
+            }
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keyStore, PASSWORD.toCharArray());
+            SSLContext context = SSLContext.getInstance(protocol);
+            context.init(kmf.getKeyManagers(), null, null);
+            socket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0, 1024);
+            socket.setEnabledProtocols(new String[]{protocol});
+        }
+
+        int port() {
+            return socket.getLocalPort();
+        }
+
+        public void run() {
+            while(true) {
+                final SSLSocket connection;
+                try {
+                    connection = (SSLSocket) socket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                workers.execute(() -> {
+                    try (SSLSocket s = connection) {
+                        s.setSoTimeout(15000);
+                        s.startHandshake();
+                        handshakes.incrementAndGet();
+                        InputStream in = s.getInputStream();
+                        byte[] buffer = new byte[4096];
+                        while(in.read(buffer) >= 0) {
+                        }
+                    } catch (IOException e) {
+                        //Clients and Spinner cut connections as part of the test
+                    }
+                });
+            }
+        }
+
+        void close() throws IOException {
+            socket.close();
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Real DNS server stand-in, answers every query with 127.0.0.1
+     */
+    static class DnsServer implements Runnable {
+        final DatagramSocket socket;
+        final AtomicLong queries = new AtomicLong();
+
+        DnsServer() throws SocketException {
+            socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        }
+
+        int port() {
+            return socket.getLocalPort();
+        }
+
+        public void run() {
+            byte[] buffer = new byte[512];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            while(true) {
+                try {
+                    packet.setLength(buffer.length);
+                    socket.receive(packet);
+                    queries.incrementAndGet();
+                    byte[] response = answer(buffer, packet.getLength());
+                    if(response != null) socket.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+                } catch (IOException e) {
+                    if(socket.isClosed()) return;
+                }
+            }
+        }
+
+        private static byte[] answer(byte[] query, int length) {
+            int pos = 12;
+            while(pos < length && query[pos] != 0) pos += (query[pos] & 0xff) + 1;
+            int questionEnd = pos + 5;
+            if(questionEnd > length) return null;
+            byte[] response = new byte[questionEnd + 16];
+            System.arraycopy(query, 0, response, 0, questionEnd);
+            response[2] = (byte) 0x81;
+            response[3] = (byte) 0x80;
+            //One question, one answer, nothing else
+            response[5] = 1;
+            response[7] = 1;
+            response[9] = 0;
+            response[11] = 0;
+            byte[] answer = {(byte) 0xc0, 0x0c, 0, 1, 0, 1, 0, 0, 0, 60, 0, 4, 127, 0, 0, 1};
+            System.arraycopy(answer, 0, response, questionEnd, answer.length);
+            return response;
+        }
+
+        void close() {
+            socket.close();
+        }
+    }
+
+    /**
+     * Censys search API stand-in. Every issuer has the same candidates,
+     * loopback addresses outside the range the clients ask for.
+     */
+    static class CensysServer {
+        final HttpServer server;
+        final AtomicLong lookups = new AtomicLong();
+
+        CensysServer(int candidates) throws IOException {
+            StringBuilder json = new StringBuilder("{\"status\":\"ok\",\"metadata\":{\"pages\":1},\"results\":[");
+            for(int i = 1; i <= candidates; i++) {
+                if(i > 1) json.append(',');
+                json.append("{\"parsed\":{\"validity\":{\"end\":\"2099-01-01T00:00:00Z\"},")
+                        .append("\"subject\":{\"common_name\":[\"127.0.1.").append(i).append("\"]}}}");
+            }
+            final byte[] body = json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.createContext("/api/v1/search/certificates", exchange -> {
+                lookups.incrementAndGet();
+                try (InputStream in = exchange.getRequestBody()) {
+                    while(in.read() >= 0) {
+                    }
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.setExecutor(Executors.newCachedThreadPool(daemon("censys-stand-in")));
+            server.start();
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + server.getAddress().getPort() + "/api/v1/search/certificates";
+        }
+
+        void close() {
+            server.stop(0);
+        }
+    }
+
+    static ThreadFactory daemon(final String name) {
+        return task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
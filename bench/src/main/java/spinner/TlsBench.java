@@ -0,0 +1,100 @@
+package spinner;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * SNI extraction from a ClientHello, framing a server flight into
+ * records the way a session relays it, and splitting its handshake
+ * records into messages.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TlsBench {
+
+    byte[] clientHello;
+
+    @Setup
+    public void setup() {
+        clientHello = Fixtures.load("client_hello");
+    }
+
+    @State(Scope.Thread)
+    public static class Flight {
+        //Bytes handed out per read, a whole flight or a typical small TCP segment
+        @Param({"16384", "1460"})
+        int readSize;
+
+        Fixtures.Source source;
+        Fixtures.Sink sink;
+        RecordBuffer buffer;
+        HandshakeParser handshake = new HandshakeParser();
+        HandshakeParser.Listener listener;
+
+        @Setup
+        public void setup(Blackhole bh) {
+            listener = (type, data, offset, length) -> bh.consume(type);
+            source = new Fixtures.Source(Fixtures.load("server_flight"), readSize);
+            sink = new Fixtures.Sink();
+            buffer = RecordBuffer.acquire();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            buffer.release();
+        }
+    }
+
+    @Benchmark
+    public String extractSNI() {
+        return MITM.extractSNI(clientHello, RecordBuffer.HEADER_LENGTH, clientHello.length - RecordBuffer.HEADER_LENGTH);
+    }
+
+    @Benchmark
+    public void frameServerFlight(Flight flight, Blackhole bh) throws IOException {
+        RecordBuffer buffer = flight.buffer;
+        flight.source.rewind();
+        while(!flight.source.exhausted()) {
+            buffer.read(flight.source);
+            while(buffer.nextRecord()) {
+                bh.consume(buffer.array()[buffer.recordOffset() + RecordBuffer.HEADER_LENGTH]);
+                bh.consume(buffer.recordLength());
+            }
+            buffer.forward(flight.sink);
+        }
+    }
+
+    @Benchmark
+    public void parseServerFlight(Flight flight) throws IOException {
+        RecordBuffer buffer = flight.buffer;
+        flight.source.rewind();
+        while(!flight.source.exhausted()) {
+            buffer.read(flight.source);
+            while(buffer.nextRecord()) {
+                if(buffer.recordType() == 22) {
+                    flight.handshake.feed(buffer.array(), buffer.recordOffset() + RecordBuffer.HEADER_LENGTH, buffer.recordLength(), flight.listener);
+                }
+            }
+            buffer.forward(flight.sink);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package spinner;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hex formatting of a ClientHello, and allow-list matching against lists
+ * of a realistic size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UtilsBench {
+
+    byte[] clientHello;
+
+    @Setup
+    public void setup() {
+        clientHello = Fixtures.load("client_hello");
+    }
+
+    @State(Scope.Thread)
+    public static class AllowList {
+        //Entries in the allow list
+        @Param({"2", "1000", "10000"})
+        int listSize;
+
+        String[] entries;
+        DomainList domains;
+        String listed;
+        String unlisted;
+
+        @Setup
+        public void setup() {
+            entries = new String[listSize];
+            for(int i = 0; i < listSize; i++) {
+                entries[i] = "cdn" + i + ".example" + (i % 97) + ".com";
+            }
+            domains = new DomainList(Arrays.asList(entries));
+            //Half way down the list, and not on it at all
+            listed = "images." + entries[listSize / 2];
+            unlisted = "clientservices.googleapis.com";
+        }
+    }
+
+    @Benchmark
+    public String byteArrayToHexString() {
+        return Utils.byteArrayToHexString(clientHello);
+    }
+
+    @Benchmark
+    public int stringListMatchListed(AllowList list) {
+        return Utils.stringListMatch(list.listed, list.entries);
+    }
+
+    @Benchmark
+    public int stringListMatchUnlisted(AllowList list) {
+        return Utils.stringListMatch(list.unlisted, list.entries);
+    }
+
+    @Benchmark
+    public boolean domainListListed(AllowList list) {
+        return list.domains.matches(list.listed);
+    }
+
+    @Benchmark
+    public boolean domainListUnlisted(AllowList list) {
+        return list.domains.matches(list.unlisted);
+    }
+}